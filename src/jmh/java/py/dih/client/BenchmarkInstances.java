@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import py.common.struct.EndPoint;
+import py.instance.DcType;
+import py.instance.Group;
+import py.instance.Instance;
+import py.instance.InstanceId;
+import py.instance.InstanceStatus;
+import py.instance.PortType;
+
+/**
+ * Instances shaped like the ones reported to DIH, shared by the benchmarks.
+ */
+final class BenchmarkInstances {
+  static final String[] SERVICE_NAMES = {"DIH", "InfoCenter", "DriverContainer", "DataNode",
+      "Coordinator"};
+
+  private BenchmarkInstances() {
+  }
+
+  static Instance newInstance(int index) {
+    Instance instance = new Instance(new InstanceId(index + 1), new Group(index % 3),
+        SERVICE_NAMES[index % SERVICE_NAMES.length],
+        index % 10 == 0 ? InstanceStatus.FAILED : InstanceStatus.HEALTHY);
+    String host = "10.0." + (index >> 8 & 0xff) + "." + (index & 0xff);
+    instance.putEndPointByServiceName(PortType.CONTROL, new EndPoint(host, 10000));
+    instance.setChecksum("checksum-" + index);
+    instance.setHeartBeatCounter(index);
+    instance.setNetSubHealth(false);
+    instance.setDcType(DcType.NORMALSUPPORT);
+    return instance;
+  }
+
+  static List<Instance> newInstances(int count) {
+    List<Instance> instances = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      instances.add(newInstance(i));
+    }
+    return instances;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import com.google.common.collect.ImmutableBiMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import py.common.struct.EndPoint;
+import py.dih.client.picker.PowerOfTwoChoicesPicker;
+import py.instance.Instance;
+import py.instance.InstanceId;
+import py.instance.InstanceStatus;
+
+/**
+ * Lookups on the instance store and the merge done by every refresh, at different cluster sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DihInstanceStoreBenchmark {
+  @Param({"100", "10000", "100000"})
+  private int instanceCount;
+
+  private DihInstanceStore store;
+  private List<Instance> instances;
+  private List<Instance> refreshedInstances;
+  private InstanceId lastId;
+  private EndPoint lastEndPoint;
+  private String lastName;
+  private final PowerOfTwoChoicesPicker powerOfTwoChoicesPicker = new PowerOfTwoChoicesPicker();
+
+  @Setup
+  public void setUp() {
+    instances = BenchmarkInstances.newInstances(instanceCount);
+    // a refresh which lost the last tenth of the instances
+    refreshedInstances = instances.subList(0, instanceCount - instanceCount / 10);
+    Instance last = instances.get(instanceCount - 1);
+    lastId = last.getId();
+    lastEndPoint = last.getEndPoint();
+    lastName = last.getName();
+
+    store = DihInstanceStore.getSingleton();
+    store.resetInstances(instances);
+  }
+
+  @Benchmark
+  public Instance getById() {
+    return store.get(lastId);
+  }
+
+  @Benchmark
+  public Instance getByEndPoint() {
+    return store.get(lastEndPoint);
+  }
+
+  @Benchmark
+  public Instance getByHostNameAndServiceName() {
+    return store.getByHostNameAndServiceName(lastEndPoint.getHostName(), lastName);
+  }
+
+  @Benchmark
+  public Set<Instance> getAllByName() {
+    return store.getAll("DataNode");
+  }
+
+  @Benchmark
+  public Set<Instance> getAll() {
+    return store.getAll();
+  }
+
+  @Benchmark
+  public Set<Instance> getAllByNameAndStatus() {
+    return store.getAll("DataNode", InstanceStatus.HEALTHY);
+  }
+
+  @Benchmark
+  public Instance pickRoundRobin() {
+    return store.pick("DataNode");
+  }
+
+  @Benchmark
+  public Instance pickPowerOfTwoChoices() {
+    return store.pick("DataNode", powerOfTwoChoicesPicker);
+  }
+
+  @Benchmark
+  public Set<Instance> getAllByStatus() {
+    return store.getAll(InstanceStatus.HEALTHY);
+  }
+
+  /**
+   * Build the new snapshot of a refresh and merge the instances missing from it.
+   */
+  @Benchmark
+  public ImmutableBiMap<InstanceId, Instance> mergeOldInstances() {
+    ImmutableBiMap.Builder<InstanceId, Instance> builder = new ImmutableBiMap.Builder<>();
+    for (Instance instance : refreshedInstances) {
+      builder.put(instance.getId(), instance);
+    }
+    store.new RetrieveInstancesWorker().mergeOldInstances(builder, true);
+    return builder.build();
+  }
+}
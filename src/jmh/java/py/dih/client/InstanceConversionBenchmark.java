@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import py.instance.Instance;
+import py.thrift.distributedinstancehub.service.HeartBeatRequest;
+import py.thrift.distributedinstancehub.service.InstanceThrift;
+
+/**
+ * Conversion between instances and their thrift structures, which every heartbeat and every
+ * instance refresh goes through.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceConversionBenchmark {
+  private Instance instance;
+  private InstanceThrift instanceThrift;
+
+  @Setup
+  public void setUp() {
+    instance = BenchmarkInstances.newInstance(42);
+    instanceThrift = DihClientRequestResponseHelper.buildThriftInstanceFrom(instance);
+  }
+
+  @Benchmark
+  public InstanceThrift toThrift() {
+    return DihClientRequestResponseHelper.buildThriftInstanceFrom(instance);
+  }
+
+  @Benchmark
+  public Instance fromThrift() {
+    return DihClientRequestResponseHelper.buildInstanceFrom(instanceThrift);
+  }
+
+  /**
+   * The payload a heartbeat worker builds on every tick.
+   */
+  @Benchmark
+  public HeartBeatRequest heartBeatRequest() {
+    return DihClientRequestResponseHelper.buildHeartBeatRequest(instance);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import py.icshare.AlarmInfo;
+import py.thrift.distributedinstancehub.service.DistributedInstanceHub;
+import py.thrift.distributedinstancehub.service.GetSyslogResponse;
+import py.thrift.distributedinstancehub.service.Syslog;
+
+/**
+ * Converting the syslog records of a poll into alarms, against an in-process DIH stub so that only
+ * the client side is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyslogParseBenchmark {
+  @Param({"10", "1000"})
+  private int syslogCount;
+
+  private DihServiceBlockingClientWrapper client;
+
+  @Setup
+  public void setUp() {
+    List<Syslog> syslogs = new ArrayList<>(syslogCount);
+    for (int i = 0; i < syslogCount; i++) {
+      Syslog syslog = new Syslog();
+      syslog.setTimeStamp("2022-03-01T08:00:" + String.format("%02d", i % 60) + ".000+0800");
+      syslog.setSourceObject("datanode-" + i % 16);
+      syslog.setDescription("disk latency is too high");
+      syslog.setType("DISK");
+      syslog.setLevel("MAJOR");
+      syslog.setAlarmAppear(i % 2 == 0);
+      syslogs.add(syslog);
+    }
+    GetSyslogResponse response = new GetSyslogResponse();
+    response.setSyslogs(syslogs);
+
+    DistributedInstanceHub.Iface stub = (DistributedInstanceHub.Iface) Proxy.newProxyInstance(
+        DistributedInstanceHub.Iface.class.getClassLoader(),
+        new Class<?>[]{DistributedInstanceHub.Iface.class}, (proxy, method, args) -> {
+          if (method.getName().equals("getSyslog")) {
+            return response;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        });
+    client = new DihServiceBlockingClientWrapper(stub);
+  }
+
+  @Benchmark
+  public List<AlarmInfo> getSyslog() throws Exception {
+    return client.getSyslog(0L);
+  }
+
+  @Benchmark
+  public int consumeSyslog() throws Exception {
+    return client.consumeSyslog(0L, alarmInfo -> true);
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import py.dih.client.transport.TransportProfile;
+import py.instance.Instance;
+import py.thrift.distributedinstancehub.service.GetInstanceResponse;
+import py.thrift.distributedinstancehub.service.InstanceThrift;
+
+/**
+ * Encoding and decoding of the full cluster response of a refresh, by the protocol of a
+ * {@link TransportProfile}. The encode benchmark reports the encoded size as the encodedBytes
+ * counter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportProfileBenchmark {
+  @Param({"binary", "compact"})
+  private String profile;
+
+  @Param({"1000", "10000"})
+  private int instanceCount;
+
+  private GetInstanceResponse response;
+  private byte[] encoded;
+  private TSerializer serializer;
+  private TDeserializer deserializer;
+
+  @Setup
+  public void setUp() throws TException {
+    List<InstanceThrift> instanceList = new ArrayList<>(instanceCount);
+    for (Instance instance : BenchmarkInstances.newInstances(instanceCount)) {
+      instanceList.add(DihClientRequestResponseHelper.buildThriftInstanceFrom(instance));
+    }
+    response = new GetInstanceResponse();
+    response.setRequestId(42);
+    response.setInstanceList(instanceList);
+
+    TransportProfile transportProfile = TransportProfile.parse(profile);
+    serializer = new TSerializer(transportProfile.newProtocolFactory());
+    deserializer = new TDeserializer(transportProfile.newProtocolFactory());
+    encoded = serializer.serialize(response);
+  }
+
+  @Benchmark
+  public byte[] encode(EncodedSize size) throws TException {
+    byte[] bytes = serializer.serialize(response);
+    size.encodedBytes = bytes.length;
+    return bytes;
+  }
+
+  @Benchmark
+  public GetInstanceResponse decode() throws TException {
+    GetInstanceResponse decoded = new GetInstanceResponse();
+    deserializer.deserialize(decoded, encoded);
+    return decoded;
+  }
+
+  /**
+   * The size in bytes of the last encoded response.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class EncodedSize {
+    public long encodedBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      encodedBytes = 0;
+    }
+  }
+}
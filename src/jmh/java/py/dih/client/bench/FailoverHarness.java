@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.PyService;
+import py.common.struct.EndPoint;
+import py.dih.client.DihClientFactory;
+import py.dih.client.DihClientRequestResponseHelper;
+import py.dih.client.DihInstanceStore;
+import py.dih.client.worker.DihClientBuildWorker;
+import py.dih.client.worker.DihClientBuildWorker.DihClientNode;
+import py.dih.client.worker.DihClientBuildWorkerFactory;
+import py.dih.client.worker.HeartBeatWorker;
+import py.instance.Group;
+import py.instance.Instance;
+import py.instance.InstanceId;
+import py.instance.InstanceStatus;
+import py.instance.PortType;
+import py.periodic.Worker;
+import py.thrift.distributedinstancehub.service.InstanceThrift;
+
+/**
+ * Measure how the client recovers when a DIH node fails, against a cluster of {@link
+ * StubDihServer}s sharing one instance map.
+ *
+ * <p>The node at index 0 is the local DIH of the client. Each scenario injects one fault into one
+ * node, and measures the time from the fault to:
+ * <ul>
+ *   <li>store: an instance registered after the fault is visible in {@link DihInstanceStore},
+ *   through the failover of its refresh when the local DIH is down</li>
+ *   <li>ring: the ring built by {@link DihClientBuildWorker} no longer contains the node, for the
+ *   faults which the cluster detects, after the detection delay</li>
+ *   <li>heartbeat: a heartbeat of the client is accepted by any node again</li>
+ * </ul>
+ * The node is healed after the observation window, and a scenario not recovered within the window
+ * is reported so.
+ *
+ * <p>Run it with the jmh profile, the options are system properties:
+ * <pre>
+ *   mvn -Pjmh compile exec:java -Dexec.mainClass=py.dih.client.bench.FailoverHarness \
+ *       -Dfailover.scenarios=kill:0,kill:1,pause:0,slow:0,partition:0 -Dfailover.label=v1
+ * </pre>
+ * The report is written to target/dih-failover-report-{label}.json for comparing versions.
+ */
+public class FailoverHarness {
+  private static final Logger logger = LoggerFactory.getLogger(FailoverHarness.class);
+  private static final long DIH_INSTANCE_ID_BASE = 1L << 40;
+  private static final long CLIENT_INSTANCE_ID = 1L << 41;
+  private static final long MARKER_INSTANCE_ID_BASE = 1L << 42;
+  private static final int MAX_RING_SIZE = 1024;
+
+  private final Map<String, Object> options = new LinkedHashMap<>();
+  private final List<StubDihServer> servers = new ArrayList<>();
+  private final AtomicLong lastHeartBeatTime = new AtomicLong();
+
+  public static void main(String[] args) throws Exception {
+    new FailoverHarness().run();
+  }
+
+  private int intOption(String name, int defaultValue) {
+    int value = Integer.getInteger(name, defaultValue);
+    options.put(name, value);
+    return value;
+  }
+
+  private String stringOption(String name, String defaultValue) {
+    String value = System.getProperty(name, defaultValue);
+    options.put(name, value);
+    return value;
+  }
+
+  private void run() throws Exception {
+    final int nodeCount = intOption("failover.nodes", 3);
+    final int instanceCount = intOption("stub.instances", 1000);
+    final int refreshIntervalMs = intOption("failover.refreshIntervalMs", 1000);
+    final int ringBuildIntervalMs = intOption("failover.ringBuildIntervalMs", 1000);
+    final int heartBeatIntervalMs = intOption("failover.heartBeatIntervalMs", 1000);
+    final int requestTimeoutMs = intOption("failover.requestTimeoutMs", 2000);
+    final int detectionMs = intOption("failover.detectionMs", 2000);
+    final int slowMs = intOption("failover.slowMs", 3000);
+    final int windowMs = intOption("failover.windowMs", 30000);
+    final int settleMs = intOption("failover.settleMs", 5000);
+    final String scenarios = stringOption("failover.scenarios",
+        "kill:0,kill:1,pause:0,slow:0,partition:0");
+    final String label = stringOption("failover.label",
+        String.valueOf(FailoverHarness.class.getPackage().getImplementationVersion()));
+
+    Map<Long, InstanceThrift> instances = new ConcurrentHashMap<>();
+    for (int i = 0; i < nodeCount; i++) {
+      StubDihServer server = new StubDihServer(instances);
+      server.setInstanceCount(i == 0 ? instanceCount : 0);
+      server.setSlowMs(slowMs);
+      server.setHeartBeatListener(instance -> {
+        if (instance.getInstanceId() == CLIENT_INSTANCE_ID) {
+          lastHeartBeatTime.accumulateAndGet(System.nanoTime(), Math::max);
+        }
+      });
+      server.start();
+      servers.add(server);
+      server.putInstance(newDihInstance(i, InstanceStatus.HEALTHY));
+    }
+    EndPoint localDihEndPoint = servers.get(0).getEndPoint();
+
+    DihClientFactory dihClientFactory = new DihClientFactory(8);
+    DihInstanceStore store = DihInstanceStore.getSingleton();
+    store.setDihClientFactory(dihClientFactory);
+    store.setDihEndPoint(localDihEndPoint);
+    store.setRefreshRate(refreshIntervalMs);
+    store.setRequestTimeout(requestTimeoutMs);
+    store.init();
+
+    DihClientBuildWorkerFactory buildWorkerFactory = new DihClientBuildWorkerFactory();
+    buildWorkerFactory.setDihClientFactory(dihClientFactory);
+    buildWorkerFactory.setLocalDihEndPoint(localDihEndPoint);
+    buildWorkerFactory.setRequestTimeout(requestTimeoutMs);
+    buildWorkerFactory.setInstancesBackupPath("target/failover-instance-backup");
+    HeartBeatWorker heartBeatWorker = new HeartBeatWorker();
+    heartBeatWorker.setAppContext(SimulatedAppContexts.newAppContext(CLIENT_INSTANCE_ID,
+        "FailoverClient", new Group(0), new EndPoint("127.0.0.1", 20000)));
+    heartBeatWorker.setDihClientFactory(dihClientFactory);
+    heartBeatWorker.setLocalDihEndPoint(localDihEndPoint);
+    heartBeatWorker.setRequestTimeout(requestTimeoutMs);
+
+    ScheduledExecutorService executor = Executors.newScheduledThreadPool(4, runnable -> {
+      Thread thread = new Thread(runnable, "dih-failover");
+      thread.setDaemon(true);
+      return thread;
+    });
+    schedule(executor, buildWorkerFactory.createWorker(), ringBuildIntervalMs);
+    schedule(executor, heartBeatWorker, heartBeatIntervalMs);
+    Thread.sleep(settleMs);
+
+    List<Map<String, Object>> results = new ArrayList<>();
+    long markerId = MARKER_INSTANCE_ID_BASE;
+    for (String scenario : scenarios.split(",")) {
+      String[] parts = scenario.trim().split(":");
+      String fault = parts[0];
+      int nodeIndex = Integer.parseInt(parts[1]);
+      StubDihServer server = servers.get(nodeIndex);
+      EndPoint faultedEndPoint = server.getEndPoint();
+      boolean isDetected = fault.equals("kill") || fault.equals("partition");
+      logger.warn("inject {} into DIH node {} at {}", fault, nodeIndex, faultedEndPoint);
+
+      long faultTime = System.nanoTime();
+      inject(server, fault);
+      // register a new instance in the cluster, which the store sees once it refreshes again
+      InstanceId marker = new InstanceId(markerId++);
+      servers.get(0).putInstance(newMarkerInstance(marker.getId()));
+
+      Map<String, Long> recoveryMs = new LinkedHashMap<>();
+      long detectionTime = faultTime + TimeUnit.MILLISECONDS.toNanos(detectionMs);
+      long deadline = faultTime + TimeUnit.MILLISECONDS.toNanos(windowMs);
+      boolean isMarkedFailed = false;
+      while (System.nanoTime() < deadline && recoveryMs.size() < 3) {
+        long now = System.nanoTime();
+        if (isDetected && !isMarkedFailed && now >= detectionTime) {
+          // the cluster notices the node is gone
+          servers.get(0).putInstance(newDihInstance(nodeIndex, InstanceStatus.FAILED));
+          isMarkedFailed = true;
+        }
+        observe(recoveryMs, "storeRecoveryMs", faultTime,
+            () -> store.get(marker) != null);
+        observe(recoveryMs, "heartBeatRecoveryMs", faultTime,
+            () -> lastHeartBeatTime.get() > faultTime);
+        if (isDetected) {
+          observe(recoveryMs, "ringRecoveryMs", faultTime,
+              () -> !ringContains(faultedEndPoint));
+        } else {
+          recoveryMs.putIfAbsent("ringRecoveryMs", null);
+        }
+        Thread.sleep(10);
+      }
+
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("fault", fault);
+      result.put("node", nodeIndex);
+      result.put("isLocalDih", nodeIndex == 0);
+      for (String metric : new String[]{"storeRecoveryMs", "ringRecoveryMs",
+          "heartBeatRecoveryMs"}) {
+        Long value = recoveryMs.get(metric);
+        result.put(metric, value == null ? -1 : value);
+      }
+      result.put("windowMs", windowMs);
+      results.add(result);
+      logger.warn("recovery of {}: {}", scenario, result);
+
+      heal(server, fault);
+      server.putInstance(newDihInstance(nodeIndex, InstanceStatus.HEALTHY));
+      Thread.sleep(settleMs);
+    }
+
+    executor.shutdownNow();
+    store.close();
+    for (StubDihServer server : servers) {
+      server.stop();
+    }
+    dihClientFactory.close();
+
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("label", label);
+    report.put("options", options);
+    // a recovery time of -1 means not recovered within the window
+    report.put("scenarios", results);
+    ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    File outputFile = new File("target/dih-failover-report-" + label + ".json");
+    outputFile.getParentFile().mkdirs();
+    mapper.writeValue(outputFile, report);
+    logger.warn("failover report is written to {}:\n{}", outputFile.getAbsolutePath(),
+        mapper.writeValueAsString(report));
+    System.exit(0);
+  }
+
+  private static void observe(Map<String, Long> recoveryMs, String metric, long faultTime,
+      BooleanSupplier isRecovered) {
+    if (!recoveryMs.containsKey(metric) && isRecovered.getAsBoolean()) {
+      recoveryMs.put(metric, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - faultTime));
+    }
+  }
+
+  private static void schedule(ScheduledExecutorService executor, Worker worker,
+      int intervalMs) {
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        worker.doWork();
+      } catch (Exception e) {
+        logger.warn("caught an exception from {}", worker, e);
+      }
+    }, 0, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  private static void inject(StubDihServer server, String fault) {
+    switch (fault) {
+      case "kill":
+        server.kill();
+        break;
+      case "pause":
+        server.setFault(StubDihServer.Fault.PAUSE);
+        break;
+      case "slow":
+        server.setFault(StubDihServer.Fault.SLOW);
+        break;
+      case "partition":
+        server.setFault(StubDihServer.Fault.PARTITION);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown fault: " + fault);
+    }
+  }
+
+  private static void heal(StubDihServer server, String fault) throws Exception {
+    if (fault.equals("kill")) {
+      server.start();
+    } else {
+      server.setFault(StubDihServer.Fault.NONE);
+    }
+  }
+
+  private static boolean ringContains(EndPoint endPoint) {
+    DihClientNode root = DihClientBuildWorker.getRootDihClientNode();
+    DihClientNode node = root;
+    for (int i = 0; node != null && i < MAX_RING_SIZE; i++) {
+      if (endPoint.equals(node.getEndPoint())) {
+        return true;
+      }
+      node = node.getNext();
+      if (node == root) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  private InstanceThrift newDihInstance(int nodeIndex, InstanceStatus status) {
+    Instance instance = new Instance(new InstanceId(DIH_INSTANCE_ID_BASE + nodeIndex),
+        new Group(0), PyService.DIH.getServiceName(), status);
+    instance.putEndPointByServiceName(PortType.CONTROL, servers.get(nodeIndex).getEndPoint());
+    return DihClientRequestResponseHelper.buildThriftInstanceFrom(instance);
+  }
+
+  private static InstanceThrift newMarkerInstance(long instanceId) {
+    Instance instance = new Instance(new InstanceId(instanceId), new Group(0),
+        "FailoverMarker", InstanceStatus.HEALTHY);
+    instance.putEndPointByServiceName(PortType.CONTROL,
+        new EndPoint("10.255.0." + (instanceId & 0xff), 10000));
+    return DihClientRequestResponseHelper.buildThriftInstanceFrom(instance);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free latency histogram in microseconds with log-linear buckets, precise to about 1/16 of
+ * the recorded value.
+ */
+public class LatencyRecorder {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder errorCount = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> magnitude) & (SUB_BUCKETS - 1);
+    return (magnitude + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /* the highest value counted in the bucket */
+  private static long valueOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int magnitude = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << magnitude) - 1;
+  }
+
+  public void record(long latencyMicros) {
+    buckets.incrementAndGet(indexOf(Math.max(0, latencyMicros)));
+    count.increment();
+    max.accumulate(latencyMicros);
+  }
+
+  public void recordError() {
+    errorCount.increment();
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getErrorCount() {
+    return errorCount.sum();
+  }
+
+  /**
+   * Get the value at the given percentile, between 0 and 100.
+   */
+  public long getPercentile(double percentile) {
+    long total = count.sum();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return Math.min(valueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Summarize the recorded latencies for the report, with the throughput over the given duration.
+   */
+  public Map<String, Object> summarize(long durationMs) {
+    Map<String, Object> summary = new LinkedHashMap<>();
+    long total = count.sum();
+    summary.put("count", total);
+    summary.put("errors", errorCount.sum());
+    summary.put("throughputPerSec", durationMs > 0 ? total * 1000.0 / durationMs : 0);
+    summary.put("p50Us", getPercentile(50));
+    summary.put("p90Us", getPercentile(90));
+    summary.put("p99Us", getPercentile(99));
+    summary.put("p999Us", getPercentile(99.9));
+    summary.put("maxUs", max.get());
+    return summary;
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.struct.EndPoint;
+import py.dih.client.DihClientFactory;
+import py.dih.client.DihInstanceStore;
+import py.dih.client.transport.TransportProfile;
+import py.dih.client.transport.TransportProfile.Protocol;
+import py.dih.client.worker.HeartBeatWorker;
+import py.instance.Group;
+import py.instance.InstanceId;
+
+/**
+ * Drive simulated heartbeat workers and instance refreshes against a {@link StubDihServer}, and
+ * report throughput, latency percentiles and staleness as json.
+ *
+ * <p>Run it with the jmh profile, the options are system properties:
+ * <pre>
+ *   mvn -Pjmh compile exec:java -Dexec.mainClass=py.dih.client.bench.LoadGenerator \
+ *       -Dload.heartbeaters=2000 -Dstub.latencyMs=2 -Dstub.errorRate=0.01
+ * </pre>
+ *
+ * <p>Set "load.profile", e.g. to "compact-framed-262144-262144", to build the clients by a
+ * {@link TransportProfile} and compare it with the default clients, the stub serves the protocol
+ * and transport of the profile.
+ *
+ * <p>Staleness is the time from an instance being added on the stub by churn to it being visible
+ * in {@link DihInstanceStore}.
+ */
+public class LoadGenerator {
+  private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+  private static final long SIMULATED_INSTANCE_ID_BASE = 1L << 40;
+
+  private final Map<String, Object> options = new LinkedHashMap<>();
+  private final LatencyRecorder heartBeatLatency = new LatencyRecorder();
+  private final LatencyRecorder refreshLatency = new LatencyRecorder();
+  private final LatencyRecorder staleness = new LatencyRecorder();
+
+  public static void main(String[] args) throws Exception {
+    new LoadGenerator().run();
+  }
+
+  private int intOption(String name, int defaultValue) {
+    int value = Integer.getInteger(name, defaultValue);
+    options.put(name, value);
+    return value;
+  }
+
+  private double doubleOption(String name, double defaultValue) {
+    double value = Double.parseDouble(System.getProperty(name, String.valueOf(defaultValue)));
+    options.put(name, value);
+    return value;
+  }
+
+  private boolean booleanOption(String name, boolean defaultValue) {
+    boolean value = Boolean.parseBoolean(System.getProperty(name, String.valueOf(defaultValue)));
+    options.put(name, value);
+    return value;
+  }
+
+  private void run() throws Exception {
+    final int instanceCount = intOption("stub.instances", 1000);
+    final double churnRate = doubleOption("stub.churnRate", 0.01);
+    final int latencyMs = intOption("stub.latencyMs", 0);
+    final int latencyJitterMs = intOption("stub.latencyJitterMs", 0);
+    final double errorRate = doubleOption("stub.errorRate", 0);
+    // a transport profile of the clients, the defaults of the thrift client factory if empty
+    final String profile = System.getProperty("load.profile", "");
+    options.put("load.profile", profile);
+    final TransportProfile transportProfile = profile.isEmpty() ? null
+        : TransportProfile.parse(profile);
+    final boolean framed = booleanOption("stub.framed",
+        transportProfile == null || transportProfile.isFramed());
+    final boolean compact = booleanOption("stub.compact",
+        transportProfile == null || transportProfile.getProtocol() == Protocol.COMPACT);
+    final int heartbeaters = intOption("load.heartbeaters", 1000);
+    final int heartBeatIntervalMs = intOption("load.heartBeatIntervalMs", 1000);
+    final int refreshers = intOption("load.refreshers", 10);
+    final int refreshIntervalMs = intOption("load.refreshIntervalMs", 1000);
+    final int threads = intOption("load.threads", 64);
+    final int durationSec = intOption("load.durationSec", 60);
+    final int requestTimeoutMs = intOption("load.requestTimeoutMs", 5000);
+    final String output = System.getProperty("load.output", "target/dih-load-report.json");
+
+    StubDihServer server = new StubDihServer();
+    server.setInstanceCount(instanceCount);
+    server.setChurnRate(churnRate);
+    server.setLatencyMs(latencyMs);
+    server.setLatencyJitterMs(latencyJitterMs);
+    server.setErrorRate(errorRate);
+    server.setFramed(framed);
+    server.setCompact(compact);
+    server.start();
+    EndPoint dihEndPoint = server.getEndPoint();
+
+    DihClientFactory dihClientFactory = new DihClientFactory(threads);
+    dihClientFactory.setTransportProfile(transportProfile);
+    ScheduledExecutorService executor = Executors.newScheduledThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "dih-load");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    // the one store of the process refreshes like in a service, the others hit DIH the same way
+    DihInstanceStore store = DihInstanceStore.getSingleton();
+    store.setDihClientFactory(dihClientFactory);
+    store.setDihEndPoint(dihEndPoint);
+    store.setRefreshRate(refreshIntervalMs);
+    store.setRequestTimeout(requestTimeoutMs);
+    store.init();
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < heartbeaters; i++) {
+      HeartBeatWorker worker = new HeartBeatWorker();
+      worker.setAppContext(SimulatedAppContexts.newAppContext(SIMULATED_INSTANCE_ID_BASE + i,
+          "SimulatedService", new Group(i % 3),
+          new EndPoint("127.0.0." + (i % 250 + 1), 20000 + i % 40000)));
+      worker.setDihClientFactory(dihClientFactory);
+      worker.setLocalDihEndPoint(dihEndPoint);
+      worker.setRequestTimeout(requestTimeoutMs);
+      executor.scheduleAtFixedRate(() -> {
+        long startTime = System.nanoTime();
+        try {
+          worker.doWork();
+          heartBeatLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+        } catch (Exception e) {
+          heartBeatLatency.recordError();
+        }
+      }, random.nextInt(heartBeatIntervalMs), heartBeatIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    for (int i = 0; i < refreshers; i++) {
+      executor.scheduleAtFixedRate(() -> {
+        long startTime = System.nanoTime();
+        try {
+          dihClientFactory.build(dihEndPoint, requestTimeoutMs).getInstanceAll();
+          refreshLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+        } catch (Exception e) {
+          refreshLatency.recordError();
+        }
+      }, random.nextInt(refreshIntervalMs), refreshIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    executor.scheduleWithFixedDelay(() -> sampleStaleness(server, store), 10, 10,
+        TimeUnit.MILLISECONDS);
+
+    long startTime = System.nanoTime();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(durationSec));
+    long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+    executor.shutdownNow();
+    store.close();
+    server.stop();
+    dihClientFactory.close();
+
+    // heartbeat worker logs its call failures instead of throwing them
+    long heartBeatErrors = heartBeatLatency.getCount() - server.getHeartBeatCount();
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("options", options);
+    report.put("durationMs", durationMs);
+    Map<String, Object> heartBeat = heartBeatLatency.summarize(durationMs);
+    heartBeat.put("errors", Math.max(0, heartBeatErrors) + heartBeatLatency.getErrorCount());
+    report.put("heartBeat", heartBeat);
+    report.put("refresh", refreshLatency.summarize(durationMs));
+    report.put("staleness", staleness.summarize(durationMs));
+    report.put("pendingStaleInstances", server.getAddedTimes().size());
+    Map<String, Object> serverReport = new LinkedHashMap<>();
+    serverReport.put("heartBeats", server.getHeartBeatCount());
+    serverReport.put("getInstances", server.getGetInstancesCount());
+    serverReport.put("injectedErrors", server.getInjectedErrorCount());
+    serverReport.put("instances", server.getInstanceCount());
+    report.put("server", serverReport);
+
+    ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    File outputFile = new File(output);
+    if (outputFile.getParentFile() != null) {
+      outputFile.getParentFile().mkdirs();
+    }
+    mapper.writeValue(outputFile, report);
+    logger.warn("load report is written to {}:\n{}", outputFile.getAbsolutePath(),
+        mapper.writeValueAsString(report));
+    System.exit(0);
+  }
+
+  private void sampleStaleness(StubDihServer server, DihInstanceStore store) {
+    long now = System.nanoTime();
+    Iterator<Entry<Long, Long>> iterator = server.getAddedTimes().entrySet().iterator();
+    while (iterator.hasNext()) {
+      Entry<Long, Long> entry = iterator.next();
+      if (store.get(new InstanceId(entry.getKey())) != null) {
+        staleness.record(TimeUnit.NANOSECONDS.toMicros(now - entry.getValue()));
+        iterator.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.bench;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import py.app.context.AppContext;
+import py.common.struct.EndPoint;
+import py.instance.Group;
+import py.instance.InstanceId;
+import py.instance.InstanceStatus;
+import py.instance.PortType;
+
+/**
+ * The app context of a simulated service, answering what the heartbeat worker asks for.
+ */
+final class SimulatedAppContexts {
+  private SimulatedAppContexts() {
+  }
+
+  static AppContext newAppContext(long instanceId, String name, Group group,
+      EndPoint endPoint) {
+    Map<PortType, EndPoint> endPoints = new HashMap<>();
+    endPoints.put(PortType.CONTROL, endPoint);
+    InstanceId id = new InstanceId(instanceId);
+    return (AppContext) Proxy.newProxyInstance(AppContext.class.getClassLoader(),
+        new Class<?>[]{AppContext.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getEndPoints":
+              return endPoints;
+            case "getMainEndPoint":
+              return endPoint;
+            case "getInstanceId":
+              return id;
+            case "getGroup":
+              return group;
+            case "getInstanceName":
+              return name;
+            case "getStatus":
+              return InstanceStatus.HEALTHY;
+            case "toString":
+              return name + "-" + instanceId;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              return null;
+          }
+        });
+  }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.struct.EndPoint;
+import py.dih.client.DihClientRequestResponseHelper;
+import py.instance.DcType;
+import py.instance.Group;
+import py.instance.Instance;
+import py.instance.InstanceId;
+import py.instance.InstanceStatus;
+import py.instance.PortType;
+import py.thrift.distributedinstancehub.service.DistributedInstanceHub;
+import py.thrift.distributedinstancehub.service.GetInstanceRequest;
+import py.thrift.distributedinstancehub.service.GetInstanceResponse;
+import py.thrift.distributedinstancehub.service.GetSyslogRequest;
+import py.thrift.distributedinstancehub.service.GetSyslogResponse;
+import py.thrift.distributedinstancehub.service.HeartBeatRequest;
+import py.thrift.distributedinstancehub.service.HeartBeatResponse;
+import py.thrift.distributedinstancehub.service.InstanceStatusThrift;
+import py.thrift.distributedinstancehub.service.InstanceThrift;
+import py.thrift.distributedinstancehub.service.Syslog;
+import py.thrift.distributedinstancehub.service.TurnInstanceToFailedRequest;
+import py.thrift.distributedinstancehub.service.TurnInstanceToFailedResponse;
+
+/**
+ * A fake DIH served over real thrift on localhost, for driving the client at scale without a DIH
+ * cluster.
+ *
+ * <p>It holds a set of simulated instances, and records the instances reported by heartbeats the
+ * way DIH does. Churn replaces a fraction of the simulated instances every second, each call can be
+ * delayed, and a fraction of the calls can fail. A failed call throws an undeclared exception, so
+ * the server drops the connection and the client sees a transport error.
+ *
+ * <p>Faults can be injected on a running server: it can be paused, slowed down, partitioned or
+ * killed and restarted on the same port. Several servers may share one instance map to stand in
+ * for a DIH cluster.
+ *
+ * <p>The transport and protocol must match the ones of the client factory under test.
+ */
+public class StubDihServer {
+  private static final Logger logger = LoggerFactory.getLogger(StubDihServer.class);
+  private static final String[] SERVICE_NAMES = {"DataNode", "Coordinator", "DriverContainer",
+      "InfoCenter"};
+
+  private final Map<Long, InstanceThrift> instances;
+  /* id of every instance added by churn to the time it was added in nanoseconds */
+  private final ConcurrentSkipListMap<Long, Long> addedTimes = new ConcurrentSkipListMap<>();
+  private final AtomicLong nextInstanceId = new AtomicLong(1);
+  private final Object pauseLock = new Object();
+  private final LongAdder heartBeatCount = new LongAdder();
+  private final LongAdder getInstancesCount = new LongAdder();
+  private final LongAdder injectedErrorCount = new LongAdder();
+
+  private int instanceCount = 1000;
+  private double churnRate = 0;
+  private int latencyMs = 0;
+  private int latencyJitterMs = 0;
+  private double errorRate = 0;
+  private boolean framed = true;
+  private boolean compact = true;
+  private int maxWorkerThreads = 4096;
+  private int port = 0;
+  private volatile Fault fault = Fault.NONE;
+  private volatile int slowMs = 0;
+  private volatile boolean isKilled = false;
+  private volatile Consumer<InstanceThrift> heartBeatListener;
+
+  private TServer server;
+  private Thread serverThread;
+  private ScheduledExecutorService churnExecutor;
+  private EndPoint endPoint;
+
+  public StubDihServer() {
+    this(new ConcurrentHashMap<>());
+  }
+
+  /**
+   * Create a server sharing the instances with other servers.
+   */
+  public StubDihServer(Map<Long, InstanceThrift> instances) {
+    this.instances = instances;
+  }
+
+  /**
+   * Start serving on the loopback address, on an ephemeral port the first time and on the same port
+   * after a restart.
+   */
+  public void start() throws Exception {
+    if (endPoint == null) {
+      for (int i = 0; i < instanceCount; i++) {
+        addInstance(false);
+      }
+    }
+
+    ServerSocket serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+    port = serverSocket.getLocalPort();
+    endPoint = new EndPoint(serverSocket.getInetAddress().getHostAddress(), port);
+    isKilled = false;
+    TProtocolFactory protocolFactory = compact ? new TCompactProtocol.Factory()
+        : new TBinaryProtocol.Factory();
+    TThreadPoolServer.Args args = new TThreadPoolServer.Args(new TServerSocket(serverSocket))
+        .processor(new DistributedInstanceHub.Processor<>(newHandler()))
+        .protocolFactory(protocolFactory)
+        .minWorkerThreads(16)
+        .maxWorkerThreads(maxWorkerThreads);
+    if (framed) {
+      args.transportFactory(new TFramedTransport.Factory());
+    }
+    server = new TThreadPoolServer(args);
+    serverThread = new Thread(server::serve, "stub-dih-server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+
+    if (churnRate > 0 && churnExecutor == null) {
+      churnExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stub-dih-churn");
+        thread.setDaemon(true);
+        return thread;
+      });
+      churnExecutor.scheduleAtFixedRate(this::churn, 1, 1, TimeUnit.SECONDS);
+    }
+    logger.warn("stub DIH is serving {} instances at {}", instanceCount, endPoint);
+  }
+
+  public void stop() {
+    if (churnExecutor != null) {
+      churnExecutor.shutdownNow();
+      churnExecutor = null;
+    }
+    kill();
+  }
+
+  /**
+   * Stop accepting connections and drop the established ones on their next call, the instances
+   * are kept for a restart by {@link #start()}.
+   */
+  public void kill() {
+    isKilled = true;
+    if (server != null) {
+      server.stop();
+      server = null;
+    }
+  }
+
+  /**
+   * Inject the fault into the calls from now on, {@link Fault#NONE} heals the server.
+   */
+  public void setFault(Fault fault) {
+    synchronized (pauseLock) {
+      this.fault = fault;
+      pauseLock.notifyAll();
+    }
+  }
+
+  public Fault getFault() {
+    return fault;
+  }
+
+  /**
+   * Set the extra latency of each call under {@link Fault#SLOW}.
+   */
+  public void setSlowMs(int slowMs) {
+    this.slowMs = slowMs;
+  }
+
+  /**
+   * Listen to the heartbeats accepted by this server.
+   */
+  public void setHeartBeatListener(Consumer<InstanceThrift> heartBeatListener) {
+    this.heartBeatListener = heartBeatListener;
+  }
+
+  public void putInstance(InstanceThrift instance) {
+    instances.put(instance.getInstanceId(), instance);
+  }
+
+  public InstanceThrift getInstance(long instanceId) {
+    return instances.get(instanceId);
+  }
+
+  public EndPoint getEndPoint() {
+    return endPoint;
+  }
+
+  /**
+   * Get the instances added by churn but not yet seen by the caller, from the id to the time they
+   * were added in nanoseconds. The caller removes the entries it has seen.
+   */
+  public ConcurrentSkipListMap<Long, Long> getAddedTimes() {
+    return addedTimes;
+  }
+
+  public long getHeartBeatCount() {
+    return heartBeatCount.sum();
+  }
+
+  public long getGetInstancesCount() {
+    return getInstancesCount.sum();
+  }
+
+  public long getInjectedErrorCount() {
+    return injectedErrorCount.sum();
+  }
+
+  public int getInstanceCount() {
+    return instances.size();
+  }
+
+  public void setInstanceCount(int instanceCount) {
+    this.instanceCount = instanceCount;
+  }
+
+  /**
+   * Set the fraction of the simulated instances replaced every second.
+   */
+  public void setChurnRate(double churnRate) {
+    this.churnRate = churnRate;
+  }
+
+  public void setLatencyMs(int latencyMs) {
+    this.latencyMs = latencyMs;
+  }
+
+  public void setLatencyJitterMs(int latencyJitterMs) {
+    this.latencyJitterMs = latencyJitterMs;
+  }
+
+  /**
+   * Set the fraction of calls which fail.
+   */
+  public void setErrorRate(double errorRate) {
+    this.errorRate = errorRate;
+  }
+
+  public void setFramed(boolean framed) {
+    this.framed = framed;
+  }
+
+  public void setCompact(boolean compact) {
+    this.compact = compact;
+  }
+
+  public void setMaxWorkerThreads(int maxWorkerThreads) {
+    this.maxWorkerThreads = maxWorkerThreads;
+  }
+
+  private void addInstance(boolean isChurn) {
+    long id = nextInstanceId.getAndIncrement();
+    Instance instance = new Instance(new InstanceId(id), new Group((int) (id % 3)),
+        SERVICE_NAMES[(int) (id % SERVICE_NAMES.length)], InstanceStatus.HEALTHY);
+    instance.putEndPointByServiceName(PortType.CONTROL,
+        new EndPoint("10.0." + (id >> 8 & 0xff) + "." + (id & 0xff), 10000));
+    instance.setDcType(DcType.NORMALSUPPORT);
+    instances.put(id, DihClientRequestResponseHelper.buildThriftInstanceFrom(instance));
+    if (isChurn) {
+      addedTimes.put(id, System.nanoTime());
+    }
+  }
+
+  private void churn() {
+    int replaced = (int) Math.ceil(instanceCount * churnRate);
+    List<Long> ids = new ArrayList<>(instances.keySet());
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < replaced && !ids.isEmpty(); i++) {
+      instances.remove(ids.remove(random.nextInt(ids.size())));
+      addInstance(true);
+    }
+  }
+
+  private void simulate() throws TException {
+    injectFault();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int delay = latencyMs + (latencyJitterMs > 0 ? random.nextInt(latencyJitterMs) : 0);
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TException(e);
+      }
+    }
+    if (errorRate > 0 && random.nextDouble() < errorRate) {
+      injectedErrorCount.increment();
+      throw new IllegalStateException("injected error");
+    }
+  }
+
+  private void injectFault() throws TException {
+    if (isKilled) {
+      throw new IllegalStateException("killed");
+    }
+    switch (fault) {
+      case PAUSE:
+        synchronized (pauseLock) {
+          while (fault == Fault.PAUSE) {
+            try {
+              pauseLock.wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new TException(e);
+            }
+          }
+        }
+        break;
+      case SLOW:
+        try {
+          Thread.sleep(slowMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new TException(e);
+        }
+        break;
+      case PARTITION:
+        throw new IllegalStateException("partitioned");
+      default:
+        break;
+    }
+  }
+
+  private DistributedInstanceHub.Iface newHandler() {
+    InvocationHandler handler = (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "ping":
+          simulate();
+          return null;
+        case "heartBeat":
+          return heartBeat((HeartBeatRequest) args[0]);
+        case "getInstances":
+          return getInstances((GetInstanceRequest) args[0]);
+        case "getSyslog":
+          return getSyslog((GetSyslogRequest) args[0]);
+        case "turnInstanceToFailed":
+          return turnInstanceToFailed((TurnInstanceToFailedRequest) args[0]);
+        default:
+          return invokeObjectMethod(proxy, method, args);
+      }
+    };
+    return (DistributedInstanceHub.Iface) Proxy.newProxyInstance(
+        DistributedInstanceHub.Iface.class.getClassLoader(),
+        new Class<?>[]{DistributedInstanceHub.Iface.class}, handler);
+  }
+
+  private Object invokeObjectMethod(Object proxy, Method method, Object[] args)
+      throws TException {
+    switch (method.getName()) {
+      case "toString":
+        return "StubDihHandler";
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "equals":
+        return proxy == args[0];
+      default:
+        throw new TException("not supported by the stub: " + method.getName());
+    }
+  }
+
+  private HeartBeatResponse heartBeat(HeartBeatRequest request) throws TException {
+    simulate();
+    heartBeatCount.increment();
+    InstanceThrift instance = request.getInstance();
+    instances.put(instance.getInstanceId(), instance);
+    Consumer<InstanceThrift> listener = heartBeatListener;
+    if (listener != null) {
+      listener.accept(instance);
+    }
+    HeartBeatResponse response = new HeartBeatResponse();
+    response.setRequestId(request.getRequestId());
+    return response;
+  }
+
+  private GetInstanceResponse getInstances(GetInstanceRequest request) throws TException {
+    simulate();
+    getInstancesCount.increment();
+    List<InstanceThrift> instanceList = new ArrayList<>();
+    if (request.isSetInstanceId()) {
+      InstanceThrift instance = instances.get(request.getInstanceId());
+      if (instance != null) {
+        instanceList.add(instance);
+      }
+    } else {
+      for (InstanceThrift instance : instances.values()) {
+        if (!request.isSetName() || request.getName().equals(instance.getName())) {
+          instanceList.add(instance);
+        }
+      }
+    }
+    GetInstanceResponse response = new GetInstanceResponse();
+    response.setRequestId(request.getRequestId());
+    response.setInstanceList(instanceList);
+    return response;
+  }
+
+  private GetSyslogResponse getSyslog(GetSyslogRequest request) throws TException {
+    simulate();
+    GetSyslogResponse response = new GetSyslogResponse();
+    response.setSyslogs(new ArrayList<Syslog>());
+    return response;
+  }
+
+  private TurnInstanceToFailedResponse turnInstanceToFailed(TurnInstanceToFailedRequest request)
+      throws TException {
+    simulate();
+    InstanceThrift instance = instances.get(request.getInstanceId());
+    if (instance != null) {
+      InstanceThrift failed = instance.deepCopy();
+      failed.setStatus(InstanceStatusThrift.FAILED);
+      instances.put(request.getInstanceId(), failed);
+    }
+    TurnInstanceToFailedResponse response = new TurnInstanceToFailedResponse();
+    response.setRequestId(request.getRequestId());
+    return response;
+  }
+
+  public enum Fault {
+    NONE,
+    /* hold every call until healed, like a stopped process */
+    PAUSE,
+    /* delay every call by the slow latency */
+    SLOW,
+    /* drop the connection on every call */
+    PARTITION
+  }
+}
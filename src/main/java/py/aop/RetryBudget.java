@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.aop;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A token bucket limiting the retries to a fraction of the successful calls.
+ *
+ * <p>Every retry takes one token and every successful call puts {@code retryRatio} token back,
+ * up to {@code maxTokens}. When the bucket is empty a failed call is not retried but fails at
+ * once, so that the clients do not multiply the load on a degraded server. The bucket is also
+ * refilled at {@code minRetriesPerSecond} as time passes, so that a client whose calls all fail,
+ * and thus deposit nothing, can still retry or fail over at that rate instead of never again.
+ */
+public class RetryBudget {
+  public static final double DEFAULT_RETRY_RATIO = 0.1;
+  public static final int DEFAULT_MAX_TOKENS = 10;
+  public static final double DEFAULT_MIN_RETRIES_PER_SECOND = 1;
+  // tokens are kept in thousandths so that fractions can be deposited atomically
+  private static final long TOKEN_SCALE = 1000;
+
+  private final long maxTokens;
+  private final long deposit;
+  // tokens refilled per nanosecond, in thousandths
+  private final double refillRate;
+  private final AtomicLong tokens;
+  private final AtomicLong lastRefillTime = new AtomicLong(System.nanoTime());
+  private final LongAdder successCount = new LongAdder();
+  private final LongAdder retryCount = new LongAdder();
+  private final LongAdder rejectedRetryCount = new LongAdder();
+
+  public RetryBudget() {
+    this(DEFAULT_RETRY_RATIO, DEFAULT_MAX_TOKENS);
+  }
+
+  public RetryBudget(double retryRatio, int maxTokens) {
+    this(retryRatio, maxTokens, DEFAULT_MIN_RETRIES_PER_SECOND);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param retryRatio          how many retries are allowed per successful call
+   * @param maxTokens           how many retries can be made in a burst
+   * @param minRetriesPerSecond how many retries are allowed per second with no successful call,
+   *                            0 to allow retries only after successful calls
+   */
+  public RetryBudget(double retryRatio, int maxTokens, double minRetriesPerSecond) {
+    Validate.isTrue(retryRatio >= 0, "retry ratio must not be negative");
+    Validate.isTrue(maxTokens > 0, "max tokens must be positive");
+    Validate.isTrue(minRetriesPerSecond >= 0, "min retries per second must not be negative");
+    this.maxTokens = maxTokens * TOKEN_SCALE;
+    this.deposit = (long) (retryRatio * TOKEN_SCALE);
+    this.refillRate = minRetriesPerSecond * TOKEN_SCALE / TimeUnit.SECONDS.toNanos(1);
+    this.tokens = new AtomicLong(this.maxTokens);
+  }
+
+  public static RetryBudget getDefault() {
+    return LazyHolder.defaultBudget;
+  }
+
+  /**
+   * Record a successful call, which refills the bucket.
+   */
+  public void onSuccess() {
+    successCount.increment();
+    if (tokens.get() < maxTokens) {
+      tokens.accumulateAndGet(deposit, (current, delta) -> Math.min(maxTokens, current + delta));
+    }
+  }
+
+  /**
+   * Take a token for a retry.
+   *
+   * @return false if the budget is exhausted and the retry must not be made
+   */
+  public boolean tryAcquireRetry() {
+    refill();
+    while (true) {
+      long current = tokens.get();
+      if (current < TOKEN_SCALE) {
+        rejectedRetryCount.increment();
+        return false;
+      }
+      if (tokens.compareAndSet(current, current - TOKEN_SCALE)) {
+        retryCount.increment();
+        return true;
+      }
+    }
+  }
+
+  public double getAvailableTokens() {
+    refill();
+    return (double) tokens.get() / TOKEN_SCALE;
+  }
+
+  public long getSuccessCount() {
+    return successCount.sum();
+  }
+
+  public long getRetryCount() {
+    return retryCount.sum();
+  }
+
+  /**
+   * Get how many retries were not made because the budget was exhausted.
+   */
+  public long getRejectedRetryCount() {
+    return rejectedRetryCount.sum();
+  }
+
+  private void refill() {
+    if (refillRate == 0) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    long last = lastRefillTime.get();
+    long refilled = (long) Math.min(maxTokens, (now - last) * refillRate);
+    if (refilled > 0 && lastRefillTime.compareAndSet(last, now)) {
+      tokens.accumulateAndGet(refilled, (current, delta) -> Math.min(maxTokens, current + delta));
+    }
+  }
+
+  private static class LazyHolder {
+    private static final RetryBudget defaultBudget = new RetryBudget();
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.aop;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import py.aop.annotation.Retry;
+
+/**
+ * The retry policy described by a {@link Retry} annotation.
+ *
+ * <p>The delay before the n-th retry is picked at random between zero and
+ * {@code period * 2^(n-1)} seconds (exponential backoff with full jitter), capped by
+ * {@link #MAX_BACKOFF_MS}, so that clients failing at the same time do not retry at the same time.
+ */
+public class RetryPolicy {
+  public static final long MAX_BACKOFF_MS = 30000;
+
+  private final int times;
+  private final long baseBackoffMs;
+  private final Class<? extends Throwable>[] retryOn;
+
+  /**
+   * Constructor.
+   *
+   * @param times         how many times to retry at most
+   * @param baseBackoffMs backoff before the first retry in milliseconds
+   * @param retryOn       exceptions to retry on, empty to retry on all exceptions
+   */
+  public RetryPolicy(int times, long baseBackoffMs, Class<? extends Throwable>[] retryOn) {
+    this.times = times;
+    this.baseBackoffMs = baseBackoffMs;
+    this.retryOn = retryOn;
+  }
+
+  /**
+   * Build the policy from the annotation.
+   */
+  @SuppressWarnings("unchecked")
+  public static RetryPolicy from(Retry retry) {
+    Class<? extends Throwable>[] when = retry.when();
+    if (when.length == 1 && Retry.class.equals(when[0].getEnclosingClass())) {
+      // default value of when, retry on all exceptions
+      when = new Class[0];
+    }
+    return new RetryPolicy(retry.times(), TimeUnit.SECONDS.toMillis(retry.period()), when);
+  }
+
+  public int getTimes() {
+    return times;
+  }
+
+  /**
+   * Whether the exception is worth a retry.
+   */
+  public boolean shouldRetryOn(Throwable throwable) {
+    if (retryOn.length == 0) {
+      return true;
+    }
+
+    for (Class<? extends Throwable> clazz : retryOn) {
+      if (clazz.isInstance(throwable)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get a random backoff before the given retry.
+   *
+   * @param retry the number of the retry, starting from 1
+   * @return backoff in milliseconds
+   */
+  public long nextBackoff(int retry) {
+    long ceiling = baseBackoffMs << Math.min(retry - 1, 20);
+    ceiling = Math.min(ceiling, MAX_BACKOFF_MS);
+    return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+}
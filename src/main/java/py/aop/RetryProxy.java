@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.aop;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.aop.annotation.Retry;
+import py.dih.client.timeout.Deadline;
+
+/**
+ * A dynamic proxy applying {@link Retry} to the methods of a thrift client interface.
+ *
+ * <p>The generated thrift interface can not be annotated, so the annotations are read from the
+ * methods with the same signature in a policy class, usually the wrapper of the thrift client.
+ * Methods without the annotation are called once.
+ *
+ * <p>All attempts of a call must start before the deadline of the call, which is the earlier of
+ * the time budget of the proxy and the {@link Deadline} of the calling thread, and a retry whose
+ * backoff would pass the deadline is not made. If the thread is interrupted during a backoff, the
+ * last failure is thrown and the interrupt is kept. If a {@link RetryBudget} is given, each retry
+ * takes a token from it and the call fails at once when the budget is exhausted.
+ *
+ * @param <T> the thrift client interface
+ */
+public class RetryProxy<T> implements InvocationHandler {
+  private static final Logger logger = LoggerFactory.getLogger(RetryProxy.class);
+
+  private final T target;
+  private final Class<?> policySource;
+  private final long deadlineMs;
+  private final RetryBudget retryBudget;
+  private final ConcurrentHashMap<Method, Optional<RetryPolicy>> policies =
+      new ConcurrentHashMap<>();
+
+  private RetryProxy(T target, Class<?> policySource, long deadlineMs, RetryBudget retryBudget) {
+    this.target = target;
+    this.policySource = policySource;
+    this.deadlineMs = deadlineMs;
+    this.retryBudget = retryBudget;
+  }
+
+  /**
+   * Wrap the target with the retry policies.
+   *
+   * @param clazz        the interface to proxy
+   * @param target       the real client
+   * @param policySource the class whose {@link Retry} annotated methods describe the policies
+   * @param deadlineMs   time budget of a call including all retries, no limit if not positive
+   */
+  public static <T> T wrap(Class<T> clazz, T target, Class<?> policySource, long deadlineMs) {
+    return wrap(clazz, target, policySource, deadlineMs, null);
+  }
+
+  /**
+   * Wrap the target with the retry policies, the retries are limited by the given budget.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T wrap(Class<T> clazz, T target, Class<?> policySource, long deadlineMs,
+      RetryBudget retryBudget) {
+    return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[]{clazz},
+        new RetryProxy<>(target, policySource, deadlineMs, retryBudget));
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    Optional<RetryPolicy> policy = policies.computeIfAbsent(method, this::lookupPolicy);
+    if (!policy.isPresent()) {
+      Object result = invokeTarget(method, args);
+      if (method.getDeclaringClass() != Object.class) {
+        onSuccess();
+      }
+      return result;
+    }
+
+    long deadline = deadlineMs > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs)
+        : Long.MAX_VALUE;
+    if (Deadline.isSet()) {
+      deadline = Math.min(deadline,
+          System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Deadline.remainingMs()));
+    }
+    int retry = 0;
+    while (true) {
+      try {
+        Object result = invokeTarget(method, args);
+        onSuccess();
+        return result;
+      } catch (Throwable t) {
+        retry++;
+        if (retry > policy.get().getTimes() || !policy.get().shouldRetryOn(t)) {
+          throw t;
+        }
+
+        long backoff = policy.get().nextBackoff(retry);
+        if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff) >= deadline) {
+          logger.warn("no time left to retry {}, give up", method.getName());
+          throw t;
+        }
+
+        if (retryBudget != null && !retryBudget.tryAcquireRetry()) {
+          logger.debug("retry budget is exhausted, give up retrying {}", method.getName());
+          throw t;
+        }
+
+        logger.warn("caught an exception when calling {}, retry {} after {} ms",
+            method.getName(), retry, backoff, t);
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          logger.warn("interrupted while waiting to retry {}, give up", method.getName());
+          throw t;
+        }
+      }
+    }
+  }
+
+  private void onSuccess() {
+    if (retryBudget != null) {
+      retryBudget.onSuccess();
+    }
+  }
+
+  private Object invokeTarget(Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getTargetException();
+    }
+  }
+
+  private Optional<RetryPolicy> lookupPolicy(Method method) {
+    Retry retry = null;
+    try {
+      retry = policySource.getMethod(method.getName(), method.getParameterTypes())
+          .getAnnotation(Retry.class);
+    } catch (NoSuchMethodException e) {
+      logger.debug("{} has no policy for {}", policySource, method.getName());
+    }
+    return retry == null ? Optional.empty() : Optional.of(RetryPolicy.from(retry));
+  }
+}
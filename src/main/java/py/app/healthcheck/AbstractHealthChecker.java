@@ -16,11 +16,28 @@ package py.app.healthcheck;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import py.app.context.AppContext;
+import py.common.struct.EndPoint;
+import py.dih.client.jfr.HealthProbeEvent;
+import py.dih.client.metrics.Histogram;
+import py.dih.client.metrics.MetricsRegistry;
+import py.dih.client.scheduler.ScheduledTask;
+import py.dih.client.scheduler.SharedScheduler;
+import py.dih.client.scheduler.TaskPriority;
 import py.dih.client.worker.HeartBeatWorkerFactory;
+import py.instance.PortType;
 import py.periodic.Worker;
 import py.periodic.WorkerFactory;
 import py.periodic.impl.ExecutionOptionsReader;
@@ -35,13 +52,25 @@ public abstract class AbstractHealthChecker implements HealthChecker {
   private static final Logger logger = LoggerFactory.getLogger(AbstractHealthChecker.class);
   protected List<Object> serviceClients;
   protected List<Method> methods;
+  protected List<PortType> portTypes;
   protected AppContext appContext;
   // Setters
   private int checkingRate;
+  private HealthCheckPolicy healthCheckPolicy = HealthCheckPolicy.MAIN_ONLY;
+  private HealthStateTracker healthStateTracker = new HealthStateTracker();
+  private AdaptiveProbeInterval adaptiveProbeInterval;
   // Internal variables
   private PeriodicWorkExecutorImpl executor;
+  private SharedScheduler sharedScheduler;
+  private ScheduledTask scheduledTask;
   private WorkerFactory heartBeatWorkerFactory;
   private boolean netSubHealth;
+  private volatile Set<PortType> failedPortTypes = Collections.emptySet();
+  private final Histogram probeLatency;
+  private final LongAdder probeFailureCount;
+  private final AtomicBoolean isHeartBeatInFlight = new AtomicBoolean(false);
+  private long reportedProbeLatency = -1;
+  private boolean probeInFlight;
 
   /**
    * AbstractHealthChecker.
@@ -53,15 +82,32 @@ public abstract class AbstractHealthChecker implements HealthChecker {
     super();
     this.methods = new ArrayList<>();
     this.serviceClients = new ArrayList<>();
+    this.portTypes = new ArrayList<>();
     this.checkingRate = checkingRate;
     this.appContext = appContext;
+    // the metrics are tagged by the service, several services may be checked in one process
+    String serviceTag = appContext == null || appContext.getInstanceName() == null ? ""
+        : "{" + appContext.getInstanceName() + "}";
+    this.probeLatency = MetricsRegistry.getDefault().histogram("healthcheck.probe.us" + serviceTag);
+    this.probeFailureCount = MetricsRegistry.getDefault()
+        .counter("healthcheck.probe.failure" + serviceTag);
   }
 
   @Override
   public void startHealthCheck() throws Exception {
     initHeartbeatItselfFactory();
+    if (adaptiveProbeInterval != null) {
+      adaptiveProbeInterval.start(checkingRate);
+    }
 
     WorkerFactory workerFactory = HealthCheckWorker::new;
+    if (sharedScheduler != null) {
+      // the probe may block, so only the heartbeat sent after it runs on the heartbeat lane
+      scheduledTask = sharedScheduler
+          .schedule("health checker", TaskPriority.HIGH, checkingRate, workerFactory);
+      return;
+    }
+
     ExecutionOptionsReader optionReader = new ExecutionOptionsReader(1, 1, checkingRate, null);
     executor = new PeriodicWorkExecutorImpl(optionReader, workerFactory, "health checker");
     executor.start();
@@ -69,14 +115,32 @@ public abstract class AbstractHealthChecker implements HealthChecker {
 
   @Override
   public void stopHealthCheck() {
+    if (scheduledTask != null) {
+      scheduledTask.cancel();
+      scheduledTask = null;
+    }
+
     // Stop the executor immediately. No meaning to wait
-    executor.stopNow();
+    if (executor != null) {
+      executor.stopNow();
+    }
+  }
+
+  protected int getCheckingRate() {
+    return checkingRate;
   }
 
   public void setCheckingRate(int checkingRate) {
     this.checkingRate = checkingRate;
   }
 
+  /**
+   * Run the health checker on the given shared scheduler instead of a dedicated executor.
+   */
+  public void setSharedScheduler(SharedScheduler sharedScheduler) {
+    this.sharedScheduler = sharedScheduler;
+  }
+
   public void setHeartBeatWorkerFactory(WorkerFactory heartBeatWorkerFactory) {
     this.heartBeatWorkerFactory = heartBeatWorkerFactory;
   }
@@ -85,24 +149,182 @@ public abstract class AbstractHealthChecker implements HealthChecker {
     this.netSubHealth = netSubHealth;
   }
 
+  public HealthStateTracker getHealthStateTracker() {
+    return healthStateTracker;
+  }
+
+  public void setHealthStateTracker(HealthStateTracker healthStateTracker) {
+    this.healthStateTracker = healthStateTracker;
+  }
+
+  /**
+   * Probe the service at an adaptive rate, while heartbeat is still sent at the checking rate
+   * with the last known health, as long as it is not too old. Set null to probe at every check.
+   */
+  public void setAdaptiveProbeInterval(AdaptiveProbeInterval adaptiveProbeInterval) {
+    this.adaptiveProbeInterval = adaptiveProbeInterval;
+  }
+
+  public void setHealthCheckPolicy(HealthCheckPolicy healthCheckPolicy) {
+    this.healthCheckPolicy = healthCheckPolicy;
+  }
+
+  /**
+   * Get the channels which failed the last health check.
+   */
+  public Set<PortType> getFailedPortTypes() {
+    return failedPortTypes;
+  }
+
+  /**
+   * Get the endpoints to probe according to the health check policy, the main endpoint comes
+   * first.
+   */
+  protected Map<PortType, EndPoint> getEndPointsToProbe() {
+    Map<PortType, EndPoint> endPoints = new LinkedHashMap<>();
+    EndPoint mainEndPoint = appContext.getMainEndPoint();
+    for (Entry<PortType, EndPoint> entry : appContext.getEndPoints().entrySet()) {
+      if (entry.getValue().equals(mainEndPoint)) {
+        endPoints.put(entry.getKey(), entry.getValue());
+        break;
+      }
+    }
+
+    if (healthCheckPolicy != HealthCheckPolicy.MAIN_ONLY) {
+      for (Entry<PortType, EndPoint> entry : appContext.getEndPoints().entrySet()) {
+        endPoints.putIfAbsent(entry.getKey(), entry.getValue());
+      }
+    }
+    return endPoints;
+  }
+
+  /**
+   * Combine the probe result of each channel into the health of the service.
+   */
+  protected boolean evaluate(Map<PortType, Boolean> results) {
+    Set<PortType> failed = new HashSet<>();
+    for (Entry<PortType, Boolean> entry : results.entrySet()) {
+      if (!entry.getValue()) {
+        failed.add(entry.getKey());
+      }
+    }
+    failedPortTypes = Collections.unmodifiableSet(failed);
+
+    if (!failed.isEmpty()) {
+      logger.warn("channels {} of the service failed the health check, endpoints={}", failed,
+          appContext.getEndPoints());
+    }
+
+    switch (healthCheckPolicy) {
+      case MAIN_ONLY:
+      case ALL:
+        return !results.isEmpty() && failed.isEmpty();
+      case QUORUM:
+        return (results.size() - failed.size()) * 2 > results.size();
+      default:
+        throw new IllegalStateException("unknown health check policy " + healthCheckPolicy);
+    }
+  }
+
   protected abstract boolean isServiceHealthy() throws Exception;
 
+  /**
+   * Report the latency of the probe settled by {@link #isServiceHealthy()}, for implementations
+   * whose probe is asynchronous. Otherwise the time spent in that method is taken as the latency.
+   */
+  protected void reportProbeLatency(long latency) {
+    this.reportedProbeLatency = latency;
+  }
+
+  /**
+   * Report that no probe was settled by {@link #isServiceHealthy()}, for implementations whose
+   * probe is asynchronous. Its result is then ignored and the health stays as it was.
+   */
+  protected void reportProbeInFlight() {
+    this.probeInFlight = true;
+  }
+
   protected abstract void initHeartbeatItselfFactory() throws Exception;
 
   private void checkServiceHealthAndSendHeartBeat() throws Exception {
-    if (isServiceHealthy() && heartBeatWorkerFactory != null) {
-      try {
-        Worker heartBeatWorker = heartBeatWorkerFactory.createWorker();
+    boolean healthy;
+    long now = System.currentTimeMillis();
+    if (adaptiveProbeInterval == null || adaptiveProbeInterval.isDue(now)) {
+      HealthProbeEvent event = new HealthProbeEvent();
+      event.begin();
+      reportedProbeLatency = -1;
+      probeInFlight = false;
+      long startTime = System.nanoTime();
+      boolean probeResult = isServiceHealthy();
+      if (probeInFlight) {
+        healthy = healthStateTracker.isHealthy();
+      } else {
+        healthy = settleProbe(event, probeResult, startTime, now);
+      }
+    } else {
+      healthy = healthStateTracker.isHealthy();
+    }
+    if (healthy && adaptiveProbeInterval != null && adaptiveProbeInterval.isResultTooOld(now)) {
+      logger.warn("the last probe of {} is too old, stop heartbeating until a probe settles",
+          appContext.getInstanceName());
+      healthy = false;
+    }
+
+    if (healthy && heartBeatWorkerFactory != null) {
+      if (sharedScheduler == null) {
+        sendHeartBeat();
+      } else if (isHeartBeatInFlight.compareAndSet(false, true)) {
+        sharedScheduler.executeHeartBeat(() -> {
+          try {
+            sendHeartBeat();
+          } catch (Exception e) {
+            logger.warn("failed to send heartbeat of {}", appContext.getInstanceName(), e);
+          } finally {
+            isHeartBeatInFlight.set(false);
+          }
+        });
+      } else {
+        logger.debug("the last heartbeat of {} is still being sent", appContext.getInstanceName());
+      }
+    }
+  }
 
-        if (HeartBeatWorkerFactory.class.isInstance(heartBeatWorkerFactory)) {
-          ((HeartBeatWorkerFactory) heartBeatWorkerFactory).setNetSubHealth(netSubHealth);
-        }
+  private void sendHeartBeat() throws Exception {
+    try {
+      Worker heartBeatWorker = heartBeatWorkerFactory.createWorker();
 
-        heartBeatWorker.doWork();
-      } finally {
-        logger.info("nothing need to do here");
+      if (HeartBeatWorkerFactory.class.isInstance(heartBeatWorkerFactory)) {
+        ((HeartBeatWorkerFactory) heartBeatWorkerFactory).setNetSubHealth(netSubHealth);
       }
+
+      heartBeatWorker.doWork();
+    } finally {
+      logger.info("nothing need to do here");
+    }
+  }
+
+  private boolean settleProbe(HealthProbeEvent event, boolean probeResult, long startTime,
+      long now) {
+    long latency = reportedProbeLatency >= 0 ? reportedProbeLatency
+        : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    probeLatency.record(TimeUnit.MILLISECONDS.toMicros(latency));
+    if (!probeResult) {
+      probeFailureCount.increment();
+    }
+    boolean healthy = healthStateTracker.update(probeResult);
+    event.end();
+    if (event.shouldCommit()) {
+      event.service = appContext.getInstanceName();
+      event.probeResult = probeResult;
+      event.healthy = healthy;
+      event.probeLatency = latency;
+      event.failedChannels = String.valueOf(failedPortTypes);
+      event.commit();
+    }
+    if (adaptiveProbeInterval != null) {
+      adaptiveProbeInterval.onProbe(probeResult, latency, now);
     }
+    return healthy;
   }
 
   private class HealthCheckWorker implements Worker {
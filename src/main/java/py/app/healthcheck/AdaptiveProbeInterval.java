@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.app.healthcheck;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decide when the health checker probes the service while the heartbeat keeps its own cadence.
+ *
+ * <p>The interval starts from the checking rate and grows by {@code backoffFactor} after every
+ * healthy and fast probe, up to {@code maxInterval}. It snaps back to the checking rate on the
+ * first failed probe or latency spike. A probe is a spike if it takes longer than
+ * {@code latencySpikeThreshold}, or more than {@code latencySpikeFactor} times the average
+ * latency.
+ *
+ * <p>Between the probes the heartbeat vouches for the service by the last probe result, so both
+ * {@code maxInterval} and {@code maxResultAge} must stay below the heartbeat timeout of DIH. Once
+ * the last result is older than {@code maxResultAge}, e.g. the probe hangs, the service is no
+ * longer vouched for until a probe settles again.
+ *
+ * <p>This class is not thread safe, it is only used by the health checking thread.
+ */
+public class AdaptiveProbeInterval {
+  private static final Logger logger = LoggerFactory.getLogger(AdaptiveProbeInterval.class);
+  private static final double LATENCY_SMOOTHING = 0.2;
+  // latency lower than this never counts as a spike
+  private static final long MIN_SPIKE_LATENCY = 10; // ms
+
+  // Setters
+  private long maxInterval = 5000; // ms
+  private long maxResultAge = 10000; // ms
+  private double backoffFactor = 1.5;
+  private long latencySpikeThreshold = 1000; // ms
+  private double latencySpikeFactor = 4;
+
+  // Internal variables
+  private long minInterval;
+  private long interval;
+  private long nextProbeTime = 0;
+  private double averageLatency = -1;
+  private long lastProbeTime = -1;
+
+  public void setMaxInterval(long maxInterval) {
+    this.maxInterval = maxInterval;
+  }
+
+  /**
+   * Set how old the last probe result can be for the heartbeat to vouch for the service.
+   */
+  public void setMaxResultAge(long maxResultAge) {
+    this.maxResultAge = maxResultAge;
+  }
+
+  public void setBackoffFactor(double backoffFactor) {
+    this.backoffFactor = backoffFactor;
+  }
+
+  public void setLatencySpikeThreshold(long latencySpikeThreshold) {
+    this.latencySpikeThreshold = latencySpikeThreshold;
+  }
+
+  public void setLatencySpikeFactor(double latencySpikeFactor) {
+    this.latencySpikeFactor = latencySpikeFactor;
+  }
+
+  public long getInterval() {
+    return interval;
+  }
+
+  /**
+   * Start from the given interval which is the fastest probing rate.
+   */
+  public void start(long minInterval) {
+    this.minInterval = minInterval;
+    this.interval = minInterval;
+    this.nextProbeTime = 0;
+    this.averageLatency = -1;
+    this.lastProbeTime = -1;
+  }
+
+  public boolean isDue(long now) {
+    return now >= nextProbeTime;
+  }
+
+  /**
+   * Whether the last probe result is too old to vouch for the service.
+   */
+  public boolean isResultTooOld(long now) {
+    return lastProbeTime >= 0 && now - lastProbeTime > maxResultAge;
+  }
+
+  /**
+   * Adjust the interval by the result of a probe.
+   *
+   * @param healthy whether the probe succeeded
+   * @param latency how long the probe took in milliseconds
+   * @param now     current time in milliseconds
+   */
+  public void onProbe(boolean healthy, long latency, long now) {
+    boolean spike = latency > latencySpikeThreshold
+        || (averageLatency >= 0 && latency > MIN_SPIKE_LATENCY
+        && latency > averageLatency * latencySpikeFactor);
+    averageLatency = averageLatency < 0 ? latency
+        : averageLatency + LATENCY_SMOOTHING * (latency - averageLatency);
+
+    if (!healthy || spike) {
+      if (interval != minInterval) {
+        logger.warn("probe the service at the fastest rate, healthy={}, latency={}ms", healthy,
+            latency);
+      }
+      interval = minInterval;
+    } else {
+      interval = Math.min(maxInterval, Math.max(interval + 1, (long) (interval * backoffFactor)));
+    }
+    nextProbeTime = now + interval;
+    lastProbeTime = now;
+  }
+}
@@ -1,5 +1,8 @@
 package py.app.healthcheck;
 
+import py.dih.client.scheduler.ScheduledTask;
+import py.dih.client.scheduler.SharedScheduler;
+import py.dih.client.scheduler.TaskPriority;
 import py.periodic.UnableToStartException;
 import py.periodic.WorkerFactory;
 import py.periodic.impl.ExecutionOptionsReader;
@@ -13,6 +16,10 @@ public class DihClientBuilderImpl implements DihClientBuilder {
 
   private int buildRate = 1800000;
 
+  private SharedScheduler sharedScheduler;
+
+  private ScheduledTask scheduledTask;
+
   public void setDihClientBuildWorkerFactory(WorkerFactory dihClientBuildWorkerFactory) {
     this.dihClientBuildWorkerFactory = dihClientBuildWorkerFactory;
   }
@@ -21,8 +28,18 @@ public class DihClientBuilderImpl implements DihClientBuilder {
     this.buildRate = buildRate;
   }
 
+  public void setSharedScheduler(SharedScheduler sharedScheduler) {
+    this.sharedScheduler = sharedScheduler;
+  }
+
   @Override
   public void startDihClientBuild() throws UnableToStartException {
+    if (sharedScheduler != null) {
+      scheduledTask = sharedScheduler.schedule("DIH client builder", TaskPriority.LOW, buildRate,
+          dihClientBuildWorkerFactory);
+      return;
+    }
+
     ExecutionOptionsReader optionReader = new ExecutionOptionsReader(1, 1, buildRate, null);
     executor = new PeriodicWorkExecutorImpl(optionReader,
         dihClientBuildWorkerFactory, "DIH client builder");
@@ -31,6 +48,13 @@ public class DihClientBuilderImpl implements DihClientBuilder {
 
   @Override
   public void stopDihClientBuild() {
-    executor.stopNow();
+    if (scheduledTask != null) {
+      scheduledTask.cancel();
+      scheduledTask = null;
+    }
+
+    if (executor != null) {
+      executor.stopNow();
+    }
   }
 }
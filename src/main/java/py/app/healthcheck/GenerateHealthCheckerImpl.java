@@ -17,9 +17,16 @@ package py.app.healthcheck;
 import io.netty.buffer.ByteBufAllocator;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,11 +39,25 @@ import py.netty.exception.DisconnectionException;
 /**
  * GenerateHealthCheckerImpl.
  *
+ * <p>The ping is asynchronous and never blocks the checking thread: each check settles the probe
+ * issued by an earlier check and issues the next one right away. A check that finds the probe
+ * still in flight settles nothing. A probe that is not answered before its deadline counts as
+ * unhealthy, and its late callback is ignored. Only the very first probe is waited for, so that
+ * the health is known as soon as the checker starts. A probe answered more than two checking
+ * rates ago, e.g. when the adaptive probe interval has grown, is too old to settle: it is dropped
+ * and a fresh probe is issued instead.
+ *
+ * <p>Depending on the {@link HealthCheckPolicy}, every channel of the service is pinged in
+ * parallel and the channels share one deadline.
+ *
  * @param <T> T
  */
 public class GenerateHealthCheckerImpl<T> extends AbstractHealthChecker {
+  protected static final int DEFAULT_PROBE_TIMEOUT = 5000; // ms
   private static final Logger logger = LoggerFactory.getLogger(AbstractHealthChecker.class);
   private final HealthCheckerClientFactory<T> healthCheckerClientFactory;
+  private int probeTimeout = DEFAULT_PROBE_TIMEOUT;
+  private ProbeRound pendingRound;
 
   public GenerateHealthCheckerImpl(int checkingRate, AppContext appContext,
       HealthCheckerClientFactory<T> healthCheckerClientFactory) {
@@ -50,26 +71,110 @@ public class GenerateHealthCheckerImpl<T> extends AbstractHealthChecker {
     this.healthCheckerClientFactory = healthCheckerClientFactory;
   }
 
+  public void setProbeTimeout(int probeTimeout) {
+    this.probeTimeout = probeTimeout;
+  }
+
   @Override
   protected boolean isServiceHealthy() throws Exception {
-    Validate.isTrue(serviceClients.size() == 1, "Expect only one client.");
-    Method method = methods.get(0);
-    Object client = serviceClients.get(0);
+    Validate.isTrue(!serviceClients.isEmpty(), "Expect at least one client.");
+    if (pendingRound == null) {
+      pendingRound = startRoundOrNull();
+      if (pendingRound == null) {
+        return false;
+      }
+      pendingRound.await();
+    }
+
+    ProbeRound round = pendingRound;
+    long now = System.nanoTime();
+    if (!round.isDone() && now < round.deadline) {
+      // still in flight, keep the verdict of the last settled round
+      reportProbeInFlight();
+      return false;
+    }
+
+    long resultAge = now - round.lastCompleteTime.get();
+    if (round.isDone() && resultAge > 2 * TimeUnit.MILLISECONDS.toNanos(getCheckingRate())) {
+      logger.debug("the ping answered {} ms ago is too old, ping again",
+          TimeUnit.NANOSECONDS.toMillis(resultAge));
+      pendingRound = startRoundOrNull();
+      if (pendingRound == null) {
+        return false;
+      }
+      reportProbeInFlight();
+      return false;
+    }
+
+    // the round is consumed here, a round failing to start must not settle it again
+    pendingRound = null;
+
+    Map<PortType, Boolean> results = new LinkedHashMap<>();
+    for (int i = 0; i < round.futures.size(); i++) {
+      CompletableFuture<Boolean> future = round.futures.get(i);
+      if (future.complete(false)) {
+        round.isTimedOut = true;
+        logger.warn("ping service timed out after {} ms, channel={}, endpoint={}", probeTimeout,
+            portTypes.get(i), appContext.getEndPoints().get(portTypes.get(i)));
+      }
+      results.put(portTypes.get(i), future.getNow(false));
+    }
+    boolean probeResult = evaluate(results);
+    long completeTime = round.isTimedOut ? System.nanoTime() : round.lastCompleteTime.get();
+    reportProbeLatency(TimeUnit.NANOSECONDS.toMillis(completeTime - round.startTime));
+    // pipeline the next round so that it is answered before the next check
+    pendingRound = startRoundOrNull();
+    return probeResult && pendingRound != null;
+  }
+
+  /**
+   * Start a round, or return null if it can not be started. The service counts as unhealthy then,
+   * and the next check starts a round again.
+   */
+  private ProbeRound startRoundOrNull() {
+    try {
+      return startRound();
+    } catch (Exception e) {
+      logger.warn("can not ping the service, endpoints={}", appContext.getEndPoints(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Ping every channel at the same time, all the pings share one deadline.
+   */
+  private ProbeRound startRound() throws Exception {
+    long startTime = System.nanoTime();
+    AtomicLong lastCompleteTime = new AtomicLong(startTime);
+    List<CompletableFuture<Boolean>> futures = new ArrayList<>(serviceClients.size());
+    for (int i = 0; i < serviceClients.size(); i++) {
+      futures.add(startProbe(i, lastCompleteTime));
+    }
+    return new ProbeRound(futures, startTime, lastCompleteTime,
+        startTime + TimeUnit.MILLISECONDS.toNanos(probeTimeout));
+  }
+
+  private CompletableFuture<Boolean> startProbe(int index, AtomicLong lastCompleteTime)
+      throws Exception {
+    Method method = methods.get(index);
+    Object client = serviceClients.get(index);
+    EndPoint endPoint = appContext.getEndPoints().get(portTypes.get(index));
+    CompletableFuture<Boolean> future = new CompletableFuture<>();
     try {
       try {
-        CountDownLatch countDownLatch = new CountDownLatch(1);
-        AtomicBoolean result = new AtomicBoolean(false);
         MethodCallback<Object> callback = new MethodCallback<Object>() {
           @Override
           public void complete(Object object) {
-            result.set(true);
-            countDownLatch.countDown();
+            lastCompleteTime.accumulateAndGet(System.nanoTime(), Math::max);
+            if (!future.complete(true)) {
+              logger.debug("ignore the late ping response from {}", endPoint);
+            }
           }
 
           @Override
           public void fail(Exception e) {
-            result.set(false);
-            countDownLatch.countDown();
+            lastCompleteTime.accumulateAndGet(System.nanoTime(), Math::max);
+            future.complete(false);
           }
 
           @Override
@@ -78,19 +183,16 @@ public class GenerateHealthCheckerImpl<T> extends AbstractHealthChecker {
           }
         };
         method.invoke(client, callback);
-
-        countDownLatch.await();
-        return result.get();
       } catch (InvocationTargetException e) {
         /*if socket failed create a new socket. */
 
         if (e.getTargetException() instanceof DisconnectionException) {
-          serviceClients.set(0, generateClient());
+          serviceClients.set(index, generateClient(endPoint));
           logger.error(
               "the service fails to call the method ping(), " 
                   + "and now create a socket again, endpoint={}",
-              appContext.getMainEndPoint());
-          return false;
+              endPoint);
+          future.complete(false);
 
         } else {
           logger.error("the service fails to call the method ping()", e.getTargetException());
@@ -103,9 +205,9 @@ public class GenerateHealthCheckerImpl<T> extends AbstractHealthChecker {
     } catch (Exception e) {
       logger.info("Unknown exception", e);
       throw e;
-    } finally {
-      logger.info("nothing need to do here");
     }
+
+    return future;
   }
 
   @Override
@@ -115,14 +217,17 @@ public class GenerateHealthCheckerImpl<T> extends AbstractHealthChecker {
       throw new Exception("ServiceClientClass or service port are not set yet");
     }
 
-    Object serviceClient = generateClient();
+    for (Entry<PortType, EndPoint> entry : getEndPointsToProbe().entrySet()) {
+      Object serviceClient = generateClient(entry.getValue());
 
-    validateServiceHealthCheckMethodExists(serviceClient);
-    Method method = serviceClient.getClass()
-        .getMethod(SERVICE_HEALTH_CHECK_METHOD_NAME, MethodCallback.class);
+      validateServiceHealthCheckMethodExists(serviceClient);
+      Method method = serviceClient.getClass()
+          .getMethod(SERVICE_HEALTH_CHECK_METHOD_NAME, MethodCallback.class);
 
-    methods.add(method);
-    serviceClients.add(serviceClient);
+      methods.add(method);
+      serviceClients.add(serviceClient);
+      portTypes.add(entry.getKey());
+    }
   }
 
   protected void validateServiceHealthCheckMethodExists(Object clientObject) throws Exception {
@@ -137,8 +242,42 @@ public class GenerateHealthCheckerImpl<T> extends AbstractHealthChecker {
     }
   }
 
-  private Object generateClient() {
-    return healthCheckerClientFactory
-        .generateSyncClient(appContext.getMainEndPoint());
+  private Object generateClient(EndPoint endPoint) {
+    return healthCheckerClientFactory.generateSyncClient(endPoint);
+  }
+
+  private static class ProbeRound {
+    private final List<CompletableFuture<Boolean>> futures;
+    private final long startTime;
+    private final AtomicLong lastCompleteTime;
+    private final long deadline;
+    private boolean isTimedOut = false;
+
+    private ProbeRound(List<CompletableFuture<Boolean>> futures, long startTime,
+        AtomicLong lastCompleteTime, long deadline) {
+      this.futures = futures;
+      this.startTime = startTime;
+      this.lastCompleteTime = lastCompleteTime;
+      this.deadline = deadline;
+    }
+
+    private void await() throws InterruptedException {
+      long remaining = deadline - System.nanoTime();
+      try {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+            .get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException | ExecutionException e) {
+        logger.debug("the first ping is not answered in time", e);
+      }
+    }
+
+    private boolean isDone() {
+      for (CompletableFuture<Boolean> future : futures) {
+        if (!future.isDone()) {
+          return false;
+        }
+      }
+      return true;
+    }
   }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.app.healthcheck;
+
+/**
+ * How the probe results of all endpoints of a service are combined into one verdict.
+ */
+public enum HealthCheckPolicy {
+  /**
+   * Only the main endpoint is probed.
+   */
+  MAIN_ONLY,
+
+  /**
+   * Every endpoint is probed and all of them must be healthy.
+   */
+  ALL,
+
+  /**
+   * Every endpoint is probed and more than half of them must be healthy.
+   */
+  QUORUM
+}
@@ -14,10 +14,23 @@
 
 package py.app.healthcheck;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.apache.commons.lang3.Validate;
 import org.apache.thrift.TException;
 import org.apache.thrift.transport.TTransportException;
@@ -32,13 +45,19 @@ import py.instance.PortType;
  * check instance health periodically.
  */
 public class HealthCheckerWithThriftImpl extends AbstractHealthChecker {
+  protected static final int DEFAULT_PROBE_TIMEOUT = 10000; // ms
   private static final Logger logger = LoggerFactory.getLogger(HealthCheckerWithThriftImpl.class);
 
   // Setters
   private Class<?> serviceClientClazz;
+  private int probeTimeout = DEFAULT_PROBE_TIMEOUT;
 
   // Internal variables
   private GenericThriftClientFactory<?> genericThriftClientFactory;
+  private ExecutorService probeExecutor;
+  private List<Future<Boolean>> inFlightProbes;
+  // the clients pinged, a client is replaced from the probe threads when its socket fails
+  private AtomicReferenceArray<Object> probeClients;
 
   public HealthCheckerWithThriftImpl(AppContext appContext) {
     this(DEFAULT_CHECKING_RATE, appContext);
@@ -56,6 +75,8 @@ public class HealthCheckerWithThriftImpl extends AbstractHealthChecker {
    *
    * <p>TODO: we assume a service is always using nonblocking way to communicate. We need to
    * specify this in some configuration file.
+   *
+   * <p>When more than one channel is probed, the pings are sent in parallel from a small pool.
    */
   protected void initHeartbeatItselfFactory() throws Exception {
     Map<PortType, EndPoint> endPoints = appContext.getEndPoints();
@@ -63,20 +84,37 @@ public class HealthCheckerWithThriftImpl extends AbstractHealthChecker {
       throw new Exception("ServiceClientClass or service port are not set yet");
     }
 
-    genericThriftClientFactory = GenericThriftClientFactory.create(serviceClientClazz, 1);
-    // set defaultSocketTimeoutMs = 10000, defaultConnectionTimeoutMs = 10000 
-    // cause we find sometimes connect to service will timeout
-    Object serviceClient = genericThriftClientFactory
-        .generateSyncClient(appContext.getMainEndPoint(), 10000, 10000);
-    validateServiceHealthCheckMethodExists(serviceClient);
-    Method method = serviceClient.getClass().getMethod(SERVICE_HEALTH_CHECK_METHOD_NAME);
-    methods.add(method);
-    serviceClients.add(serviceClient);
+    Map<PortType, EndPoint> endPointsToProbe = getEndPointsToProbe();
+    genericThriftClientFactory = GenericThriftClientFactory
+        .create(serviceClientClazz, endPointsToProbe.size());
+    for (Entry<PortType, EndPoint> entry : endPointsToProbe.entrySet()) {
+      // a ping answered after the probe timeout is not waited for, so the socket does not wait
+      // longer either; defaultConnectionTimeoutMs = 10000 cause we find sometimes connect to
+      // service will timeout
+      Object serviceClient = genericThriftClientFactory
+          .generateSyncClient(entry.getValue(), probeTimeout, 10000);
+      validateServiceHealthCheckMethodExists(serviceClient);
+      Method method = serviceClient.getClass().getMethod(SERVICE_HEALTH_CHECK_METHOD_NAME);
+      methods.add(method);
+      serviceClients.add(serviceClient);
+      portTypes.add(entry.getKey());
+    }
+    probeClients = new AtomicReferenceArray<>(serviceClients.toArray());
+
+    if (serviceClients.size() > 1) {
+      probeExecutor = Executors.newFixedThreadPool(serviceClients.size(),
+          new ThreadFactoryBuilder().setNameFormat("health-probe-%d").setDaemon(true).build());
+      inFlightProbes = new ArrayList<>(Collections.nCopies(serviceClients.size(), null));
+    }
   }
 
   @Override
   public void stopHealthCheck() {
     super.stopHealthCheck();
+    if (probeExecutor != null) {
+      probeExecutor.shutdownNow();
+      probeExecutor = null;
+    }
     if (genericThriftClientFactory != null) {
       genericThriftClientFactory.close();
       genericThriftClientFactory = null;
@@ -87,39 +125,19 @@ public class HealthCheckerWithThriftImpl extends AbstractHealthChecker {
     this.serviceClientClazz = serviceClientClazz;
   }
 
+  public void setProbeTimeout(int probeTimeout) {
+    this.probeTimeout = probeTimeout;
+  }
+
   @Override
   protected boolean isServiceHealthy() throws Exception {
     try {
-      /*Only control Channel is considered, there is only one service client.*/
-      Validate.isTrue(serviceClients.size() == 1, "Expect only one client.");
-      for (int i = 0; i < serviceClients.size(); i++) {
-        /*Modified by Vin xu for DataNode's status couldn't 
-        recovered after network been recovered at 2017-3-21 begin.*/
-        try {
-          methods.get(i).invoke(serviceClients.get(i));
-        } catch (InvocationTargetException e) {
-          /*if socket failed create a new socket. */
-          if (e.getTargetException() instanceof TTransportException) {
-            serviceClients.set(i,
-                genericThriftClientFactory.generateSyncClient(appContext.getMainEndPoint()));
-            logger.error(
-                "the service fails to call the method ping(), and now create a socket again," 
-                    + " endpoint={}",
-                appContext.getMainEndPoint());
-
-            /*If control channel only be considered continue in following is needed.*/
-            return false;
-
-          } else {
-            logger.error("the service fails to call the method ping()", e.getTargetException());
-            throw e;
-          }
-
-        }
-        /*Modified by Vin xu for DataNode's status couldn't recovered after network been recovered 
-        at 2017-3-21 end .*/
+      Validate.isTrue(!serviceClients.isEmpty(), "Expect at least one client.");
+      if (serviceClients.size() == 1) {
+        return evaluate(Collections.singletonMap(portTypes.get(0), ping(0)));
+      } else {
+        return evaluate(pingInParallel());
       }
-      return true;
     } catch (SecurityException | IllegalArgumentException | IllegalAccessException e) {
       logger.error("the service doesn't have ping() method defined", e);
       throw e;
@@ -139,6 +157,70 @@ public class HealthCheckerWithThriftImpl extends AbstractHealthChecker {
     }
   }
 
+  /**
+   * Ping all channels at the same time under one shared deadline. A channel whose ping is still
+   * running from the last check is not pinged again, the running ping is waited for instead.
+   */
+  private Map<PortType, Boolean> pingInParallel() {
+    for (int i = 0; i < serviceClients.size(); i++) {
+      Future<Boolean> inFlightProbe = inFlightProbes.get(i);
+      if (inFlightProbe == null || inFlightProbe.isDone()) {
+        final int index = i;
+        inFlightProbes.set(i, probeExecutor.submit(() -> ping(index)));
+      }
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(probeTimeout);
+    Map<PortType, Boolean> results = new LinkedHashMap<>();
+    for (int i = 0; i < serviceClients.size(); i++) {
+      PortType portType = portTypes.get(i);
+      try {
+        results.put(portType, inFlightProbes.get(i)
+            .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+      } catch (TimeoutException e) {
+        logger.warn("ping service timed out after {} ms, channel={}, endpoint={}", probeTimeout,
+            portType, appContext.getEndPoints().get(portType));
+        results.put(portType, false);
+      } catch (ExecutionException e) {
+        logger.warn("Can't ping the channel {} which might be unhealthy", portType, e.getCause());
+        results.put(portType, false);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        results.put(portType, false);
+      }
+    }
+    return results;
+  }
+
+  private boolean ping(int index) throws Exception {
+    /*Modified by Vin xu for DataNode's status couldn't 
+    recovered after network been recovered at 2017-3-21 begin.*/
+    try {
+      methods.get(index).invoke(probeClients.get(index));
+    } catch (InvocationTargetException e) {
+      /*if socket failed create a new socket. */
+      if (e.getTargetException() instanceof TTransportException) {
+        EndPoint endPoint = appContext.getEndPoints().get(portTypes.get(index));
+        // the same timeouts as the first client, so a hung service can not block the probe
+        probeClients.set(index,
+            genericThriftClientFactory.generateSyncClient(endPoint, probeTimeout, 10000));
+        logger.error(
+            "the service fails to call the method ping(), and now create a socket again," 
+                + " endpoint={}",
+            endPoint);
+        return false;
+
+      } else {
+        logger.error("the service fails to call the method ping()", e.getTargetException());
+        throw e;
+      }
+
+    }
+    /*Modified by Vin xu for DataNode's status couldn't recovered after network been recovered 
+    at 2017-3-21 end .*/
+    return true;
+  }
+
   protected void validateServiceHealthCheckMethodExists(Object clientObject) throws Exception {
     try {
       clientObject.getClass().getMethod(SERVICE_HEALTH_CHECK_METHOD_NAME);
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.app.healthcheck;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turn the probe results into a stable service state before heartbeating.
+ *
+ * <p>The state only turns down after {@code failureThreshold} consecutive failed probes and only
+ * turns up after {@code successThreshold} consecutive healthy probes. With flap damping enabled,
+ * every state change adds a penalty which decays exponentially with {@code halfLife}. Once the
+ * penalty goes above {@code suppressThreshold} the service is held down, and it is released only
+ * when the penalty decays below {@code reuseThreshold}.
+ *
+ * <p>The default thresholds are 1 and damping is disabled, which follows every probe result.
+ */
+public class HealthStateTracker {
+  private static final Logger logger = LoggerFactory.getLogger(HealthStateTracker.class);
+  private static final double FLAP_PENALTY = 1000;
+
+  // Setters
+  private int failureThreshold = 1;
+  private int successThreshold = 1;
+  private boolean flapDamping = false;
+  private double suppressThreshold = 2000;
+  private double reuseThreshold = 750;
+  private long halfLife = 60000; // ms
+
+  // Internal variables
+  private Boolean healthy;
+  private int consecutiveFailures = 0;
+  private int consecutiveSuccesses = 0;
+  private double penalty = 0;
+  private long penaltyUpdateTime = 0;
+  private boolean suppressed = false;
+  private final AtomicLong stateChangeCount = new AtomicLong(0);
+  private final AtomicLong suppressedChangeCount = new AtomicLong(0);
+
+  public void setFailureThreshold(int failureThreshold) {
+    this.failureThreshold = failureThreshold;
+  }
+
+  public void setSuccessThreshold(int successThreshold) {
+    this.successThreshold = successThreshold;
+  }
+
+  public void setFlapDamping(boolean flapDamping) {
+    this.flapDamping = flapDamping;
+  }
+
+  public void setSuppressThreshold(double suppressThreshold) {
+    this.suppressThreshold = suppressThreshold;
+  }
+
+  public void setReuseThreshold(double reuseThreshold) {
+    this.reuseThreshold = reuseThreshold;
+  }
+
+  public void setHalfLife(long halfLife) {
+    this.halfLife = halfLife;
+  }
+
+  public long getStateChangeCount() {
+    return stateChangeCount.get();
+  }
+
+  /**
+   * Get how many times the service turned up while the damping kept it down.
+   */
+  public long getSuppressedChangeCount() {
+    return suppressedChangeCount.get();
+  }
+
+  public synchronized boolean isSuppressed() {
+    return suppressed;
+  }
+
+  public synchronized boolean isHealthy() {
+    return healthy != null && healthy && !suppressed;
+  }
+
+  public boolean update(boolean probeResult) {
+    return update(probeResult, System.currentTimeMillis());
+  }
+
+  /**
+   * Feed one probe result.
+   *
+   * @return whether the service is considered healthy after the result
+   */
+  public synchronized boolean update(boolean probeResult, long now) {
+    if (probeResult) {
+      consecutiveSuccesses++;
+      consecutiveFailures = 0;
+    } else {
+      consecutiveFailures++;
+      consecutiveSuccesses = 0;
+    }
+
+    boolean isTurnedUp = false;
+    if (healthy == null) {
+      // the first result decides the initial state
+      healthy = probeResult;
+    } else if (healthy && consecutiveFailures >= failureThreshold) {
+      changeState(false, now);
+    } else if (!healthy && consecutiveSuccesses >= successThreshold) {
+      changeState(true, now);
+      isTurnedUp = true;
+    }
+
+    if (suppressed && decayPenalty(now) < reuseThreshold) {
+      logger.warn("service stops flapping, release the damping");
+      suppressed = false;
+    }
+
+    if (suppressed && isTurnedUp) {
+      suppressedChangeCount.incrementAndGet();
+    }
+    return healthy && !suppressed;
+  }
+
+  private void changeState(boolean newState, long now) {
+    healthy = newState;
+    stateChangeCount.incrementAndGet();
+    logger.warn("service turns {}", newState ? "up" : "down");
+    if (!flapDamping) {
+      return;
+    }
+
+    penalty = decayPenalty(now) + FLAP_PENALTY;
+    if (!suppressed && penalty > suppressThreshold) {
+      logger.warn("service is flapping, hold it down until it is stable, penalty={}", penalty);
+      suppressed = true;
+    }
+  }
+
+  private double decayPenalty(long now) {
+    if (penalty > 0 && now > penaltyUpdateTime) {
+      penalty = penalty * Math.pow(0.5, (double) (now - penaltyUpdateTime) / halfLife);
+    }
+    penaltyUpdateTime = now;
+    return penalty;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.struct.EndPoint;
+import py.dih.client.worker.DihClientBuildWorker;
+import py.dih.client.worker.DihClientBuildWorker.DihClientNode;
+import py.dih.client.worker.DihClientBuildWorkerFactory;
+
+/**
+ * Start a {@link DihInstanceStore} without waiting for the first ticks of its workers.
+ *
+ * <p>The store fetches the instances from its DIH at once, while the ring of DIH is built and all
+ * known DIH are connected in parallel. The DIH which answer become the failovers of the store
+ * until its first refresh succeeds, so a local DIH which is down at boot does not leave the store
+ * empty for a whole refresh period. Callers wait for the data by the returned future or
+ * {@link DihInstanceStore#awaitReady}:
+ *
+ * <pre>
+ * DihClientBootstrap bootstrap = new DihClientBootstrap(dihClientFactory);
+ * bootstrap.setDihClientBuildWorkerFactory(dihClientBuildWorkerFactory);
+ * bootstrap.start(store);
+ * if (!store.awaitReady(5, TimeUnit.SECONDS)) {
+ *   logger.warn("no instance from DIH yet");
+ * }
+ * </pre>
+ */
+public class DihClientBootstrap {
+  private static final Logger logger = LoggerFactory.getLogger(DihClientBootstrap.class);
+
+  private final DihClientFactory dihClientFactory;
+  private final Set<EndPoint> peers = new LinkedHashSet<>();
+  private DihClientBuildWorkerFactory dihClientBuildWorkerFactory;
+  private long connectTimeout = 3000;
+
+  public DihClientBootstrap(DihClientFactory dihClientFactory) {
+    this.dihClientFactory = dihClientFactory;
+  }
+
+  /**
+   * Add DIH known from the configuration, besides the DIH of the store and those of the ring.
+   */
+  public void addPeers(Collection<EndPoint> peers) {
+    this.peers.addAll(peers);
+  }
+
+  /**
+   * Build the ring of DIH clients right away too, the DIH of the ring are connected as peers.
+   */
+  public void setDihClientBuildWorkerFactory(
+      DihClientBuildWorkerFactory dihClientBuildWorkerFactory) {
+    this.dihClientBuildWorkerFactory = dihClientBuildWorkerFactory;
+  }
+
+  /**
+   * Set how long connecting to the peers is waited for.
+   */
+  public void setConnectTimeout(long connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * Init the store and fetch its first snapshot in the background.
+   *
+   * @return the future completed when the store has the instances, see
+   *     {@link DihInstanceStore#getReadyFuture()}
+   */
+  public CompletableFuture<DihInstanceStore> start(DihInstanceStore store) throws Exception {
+    Set<EndPoint> knownPeers = new LinkedHashSet<>(peers);
+    if (store.getDihEndPoint() != null) {
+      knownPeers.add(store.getDihEndPoint());
+    }
+    store.setBootstrapPeers(knownPeers);
+    store.init();
+
+    ExecutorService executor = Executors.newFixedThreadPool(2,
+        new ThreadFactoryBuilder().setNameFormat("dih-bootstrap-%d").setDaemon(true).build());
+    executor.execute(() -> {
+      if (!store.refreshNow()) {
+        logger.warn("the first fetch from {} failed", store.getDihEndPoint());
+      }
+    });
+    executor.execute(() -> {
+      if (dihClientBuildWorkerFactory != null) {
+        knownPeers.addAll(buildRing());
+      }
+      List<EndPoint> reachablePeers = prewarm(knownPeers);
+      if (store.isReady()) {
+        return;
+      }
+      store.setBootstrapPeers(reachablePeers.isEmpty() ? knownPeers : reachablePeers);
+      if (!store.refreshNow()) {
+        logger.warn("can not fetch the instances from any of {}, wait for the next refresh",
+            knownPeers);
+      }
+    });
+    // the submitted tasks still run
+    executor.shutdown();
+    return store.getReadyFuture();
+  }
+
+  /**
+   * Connect to the DIH in parallel and ping them, so that the first calls do not pay for the
+   * connections.
+   *
+   * @return the DIH which answered within the connect timeout, the fastest first
+   */
+  public List<EndPoint> prewarm(Collection<EndPoint> endPoints) {
+    if (endPoints.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    Map<EndPoint, Long> latencies = new ConcurrentHashMap<>();
+    CountDownLatch latch = new CountDownLatch(endPoints.size());
+    ExecutorService executor = Executors.newFixedThreadPool(endPoints.size(),
+        new ThreadFactoryBuilder().setNameFormat("dih-prewarm-%d").setDaemon(true).build());
+    try {
+      for (EndPoint endPoint : endPoints) {
+        executor.execute(() -> {
+          long startTime = System.nanoTime();
+          try {
+            dihClientFactory.build(endPoint, connectTimeout, "ping").ping();
+            latencies.put(endPoint, System.nanoTime() - startTime);
+          } catch (Exception e) {
+            logger.warn("can not connect to DIH {} at startup", endPoint);
+          } finally {
+            latch.countDown();
+          }
+        });
+      }
+      if (!latch.await(connectTimeout, TimeUnit.MILLISECONDS)) {
+        logger.warn("connecting to DIH {} timed out, {} answered", endPoints, latencies.keySet());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    List<EndPoint> reachable = new ArrayList<>(latencies.keySet());
+    reachable.sort((left, right) -> Long.compare(latencies.get(left), latencies.get(right)));
+    return reachable;
+  }
+
+  private Set<EndPoint> buildRing() {
+    Set<EndPoint> ring = new LinkedHashSet<>();
+    try {
+      DihClientBuildWorker worker = (DihClientBuildWorker) dihClientBuildWorkerFactory
+          .createWorker();
+      worker.doWork();
+      DihClientNode node = worker.getRoot();
+      while (node != null && ring.add(node.getEndPoint())) {
+        node = node.getNext();
+      }
+    } catch (Exception e) {
+      logger.warn("can not build the ring of DIH at startup", e);
+    }
+    return ring;
+  }
+}
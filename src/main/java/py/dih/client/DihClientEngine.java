@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.app.context.AppContext;
+import py.common.struct.EndPoint;
+import py.dih.client.scheduler.ScheduledTask;
+import py.dih.client.scheduler.SharedScheduler;
+import py.dih.client.scheduler.TaskPriority;
+import py.dih.client.worker.HeartBeatWorkerFactory;
+import py.instance.DcType;
+
+/**
+ * Track several DIH clusters and heartbeat for several services in one process, on one scheduler
+ * and one connection pool.
+ *
+ * <p>Every store and heartbeat of the engine is a task of the shared scheduler, so the threads do
+ * not grow with the clusters and services, and the connections to a DIH are pooled by the shared
+ * client factory. {@link DihInstanceStore#getSingleton()} is still the store of a process working
+ * with one cluster.
+ */
+public class DihClientEngine {
+  private static final Logger logger = LoggerFactory.getLogger(DihClientEngine.class);
+
+  private final SharedScheduler sharedScheduler;
+  private final DihClientFactory dihClientFactory;
+  private final Map<String, DihInstanceStore> stores = new ConcurrentHashMap<>();
+  private final Map<String, ScheduledTask> heartBeatTasks = new ConcurrentHashMap<>();
+  private int refreshRate = 10000;
+  private long requestTimeout = 20000;
+
+  public DihClientEngine(SharedScheduler sharedScheduler, DihClientFactory dihClientFactory) {
+    this.sharedScheduler = sharedScheduler;
+    this.dihClientFactory = dihClientFactory;
+  }
+
+  /**
+   * Get the store of the cluster, it is created and started on the first call.
+   *
+   * @param cluster     the name of the cluster
+   * @param dihEndPoint the DIH to retrieve the instances from, used only on creation
+   */
+  public DihInstanceStore getStore(String cluster, EndPoint dihEndPoint) {
+    return stores.computeIfAbsent(cluster, name -> {
+      DihInstanceStore store = new DihInstanceStore(name);
+      store.setDihClientFactory(dihClientFactory);
+      store.setSharedScheduler(sharedScheduler);
+      store.setDihEndPoint(dihEndPoint);
+      store.setRefreshRate(refreshRate);
+      store.setRequestTimeout(requestTimeout);
+      try {
+        store.init();
+      } catch (Exception e) {
+        throw new IllegalStateException("can not start the instance store of " + name, e);
+      }
+      logger.warn("track DIH cluster {} by {}", name, dihEndPoint);
+      return store;
+    });
+  }
+
+  public void removeStore(String cluster) {
+    DihInstanceStore store = stores.remove(cluster);
+    if (store != null) {
+      store.close();
+    }
+  }
+
+  /**
+   * Heartbeat for the service with the local DIH of its cluster at the given rate, replacing the
+   * heartbeat of the service started before. A service whose heartbeats are gated by a health
+   * checker should hand the factory of {@link #newHeartBeatWorkerFactory} to the checker instead.
+   */
+  public void startHeartBeat(AppContext appContext, EndPoint localDihEndPoint, int rate) {
+    String name = "heartbeat-" + appContext.getInstanceName() + "-" + appContext.getInstanceId();
+    ScheduledTask task = sharedScheduler.schedule(name, TaskPriority.HEARTBEAT, rate,
+        newHeartBeatWorkerFactory(appContext, localDihEndPoint));
+    ScheduledTask previous = heartBeatTasks.put(name, task);
+    if (previous != null) {
+      previous.cancel();
+    }
+  }
+
+  public void stopHeartBeat(AppContext appContext) {
+    ScheduledTask task = heartBeatTasks.remove(
+        "heartbeat-" + appContext.getInstanceName() + "-" + appContext.getInstanceId());
+    if (task != null) {
+      task.cancel();
+    }
+  }
+
+  /**
+   * Create the heartbeat worker factory of a service, with the connections of the engine.
+   */
+  public HeartBeatWorkerFactory newHeartBeatWorkerFactory(AppContext appContext,
+      EndPoint localDihEndPoint) {
+    HeartBeatWorkerFactory factory = new HeartBeatWorkerFactory();
+    factory.setAppContext(appContext);
+    factory.setLocalDihEndPoint(localDihEndPoint);
+    factory.setDihClientFactory(dihClientFactory);
+    factory.setRequestTimeout(requestTimeout);
+    factory.setDcType(DcType.NORMALSUPPORT);
+    return factory;
+  }
+
+  public SharedScheduler getSharedScheduler() {
+    return sharedScheduler;
+  }
+
+  public DihClientFactory getDihClientFactory() {
+    return dihClientFactory;
+  }
+
+  /**
+   * Set the refresh rate of the stores created from now on.
+   */
+  public void setRefreshRate(int refreshRate) {
+    this.refreshRate = refreshRate;
+  }
+
+  /**
+   * Set the request timeout of the stores and heartbeats created from now on.
+   */
+  public void setRequestTimeout(long requestTimeout) {
+    this.requestTimeout = requestTimeout;
+  }
+
+  /**
+   * Stop all stores and heartbeats of the engine, the scheduler and client factory are left to
+   * their owner.
+   */
+  public void close() {
+    for (ScheduledTask task : heartBeatTasks.values()) {
+      task.cancel();
+    }
+    heartBeatTasks.clear();
+    for (DihInstanceStore store : stores.values()) {
+      store.close();
+    }
+    stores.clear();
+  }
+}
@@ -16,8 +16,16 @@ package py.dih.client;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import py.aop.RetryBudget;
+import py.aop.RetryProxy;
 import py.client.thrift.GenericThriftClientFactory;
 import py.common.struct.EndPoint;
+import py.dih.client.metrics.MetricsRegistry;
+import py.dih.client.metrics.RpcMetricsProxy;
+import py.dih.client.timeout.AdaptiveTimeout;
+import py.dih.client.timeout.Deadline;
+import py.dih.client.transport.DihClientPool;
+import py.dih.client.transport.TransportProfile;
 import py.exception.GenericThriftClientFactoryException;
 import py.thrift.distributedinstancehub.service.DistributedInstanceHub;
 
@@ -25,26 +33,38 @@ public class DihClientFactory {
   private static final Logger logger = LoggerFactory.getLogger(DihClientFactory.class);
   private static final int DEFAULT_REQUEST_TIMEOUT_MS = 20000; // 20seconds
   private GenericThriftClientFactory<DistributedInstanceHub.Iface> genericClientFactory;
+  private boolean retryEnabled = false;
+  private RetryBudget retryBudget = RetryBudget.getDefault();
+  private MetricsRegistry metricsRegistry = MetricsRegistry.getDefault();
+  private AdaptiveTimeout adaptiveTimeout;
+  private int connectionTimeoutMs = 0;
+  private volatile DihClientPool clientPool;
 
   public DihClientFactory() {
     genericClientFactory = GenericThriftClientFactory.create(DistributedInstanceHub.Iface.class);
+    exportRetryBudget(metricsRegistry, retryBudget);
   }
 
   public DihClientFactory(int minWorkThreadCount) {
     genericClientFactory = GenericThriftClientFactory.create(DistributedInstanceHub.Iface.class,
         minWorkThreadCount);
+    exportRetryBudget(metricsRegistry, retryBudget);
   }
 
   public DihClientFactory(int minWorkThreadCount, int connectionTimeoutMs) {
     genericClientFactory = GenericThriftClientFactory
         .create(DistributedInstanceHub.Iface.class, minWorkThreadCount)
         .withDefaultConnectionTimeout(connectionTimeoutMs);
+    this.connectionTimeoutMs = connectionTimeoutMs;
+    exportRetryBudget(metricsRegistry, retryBudget);
   }
 
   public DihClientFactory(int minWorkThreadCount, int maxWorkThreadCount, int connectionTimeoutMs) {
     genericClientFactory = GenericThriftClientFactory
         .create(DistributedInstanceHub.Iface.class, minWorkThreadCount, maxWorkThreadCount)
         .withDefaultConnectionTimeout(connectionTimeoutMs);
+    this.connectionTimeoutMs = connectionTimeoutMs;
+    exportRetryBudget(metricsRegistry, retryBudget);
   }
 
   public DihServiceBlockingClientWrapper build(EndPoint eps)
@@ -52,18 +72,136 @@ public class DihClientFactory {
     return build(eps, DEFAULT_REQUEST_TIMEOUT_MS);
   }
 
+  /**
+   * Build a client whose calls time out after the request timeout, which is the default one if not
+   * positive, or the time left before the {@link Deadline} of the current thread if earlier.
+   */
   public DihServiceBlockingClientWrapper build(EndPoint eps, long requestTimeout)
       throws GenericThriftClientFactoryException {
+    return build(eps, requestTimeout, null);
+  }
+
+  /**
+   * Build a client for the calls of the given operation, a key naming what the calls are for,
+   * e.g. a method of {@link DistributedInstanceHub.Iface}. With an {@link AdaptiveTimeout}, the
+   * calls are recorded under the operation and time out as its latency on the endpoint suggests,
+   * but never later than the request timeout, which is the default one if not positive.
+   */
+  public DihServiceBlockingClientWrapper build(EndPoint eps, long requestTimeout, String operation)
+      throws GenericThriftClientFactoryException {
     if (eps == null) {
       return null;
     }
 
-    DistributedInstanceHub.Iface client = genericClientFactory
-        .generateSyncClient(eps, requestTimeout);
+    // a timeout of 0 would make the socket wait forever
+    requestTimeout = requestTimeout > 0 ? requestTimeout : DEFAULT_REQUEST_TIMEOUT_MS;
+    if (operation != null && adaptiveTimeout != null) {
+      requestTimeout = adaptiveTimeout.timeoutOf(eps, operation, requestTimeout);
+    }
+    requestTimeout = Deadline.bound(requestTimeout);
+
+    DihClientPool pool = clientPool;
+    DistributedInstanceHub.Iface client = pool != null ? pool.build(eps, requestTimeout)
+        : genericClientFactory.generateSyncClient(eps, requestTimeout);
+    if (adaptiveTimeout != null) {
+      client = adaptiveTimeout.wrap(DistributedInstanceHub.Iface.class, client, eps,
+          operation);
+    }
+    if (metricsRegistry != null) {
+      // every attempt of a retried call is recorded
+      client = RpcMetricsProxy.wrap(DistributedInstanceHub.Iface.class, client, eps,
+          metricsRegistry);
+    }
+    if (retryEnabled) {
+      // retries of a call share the request timeout as the budget
+      client = RetryProxy.wrap(DistributedInstanceHub.Iface.class, client,
+          DihServiceBlockingClientWrapper.class, requestTimeout, retryBudget);
+    }
     return new DihServiceBlockingClientWrapper(client);
   }
 
-  public void close() {
+  public boolean isRetryEnabled() {
+    return retryEnabled;
+  }
+
+  /**
+   * Retry the calls of the built clients as annotated in {@link DihServiceBlockingClientWrapper}.
+   */
+  public void setRetryEnabled(boolean retryEnabled) {
+    this.retryEnabled = retryEnabled;
+  }
+
+  /**
+   * Get the budget limiting the retries and failovers of all DIH calls, it is shared by the whole
+   * process by default.
+   */
+  public RetryBudget getRetryBudget() {
+    return retryBudget;
+  }
+
+  public void setRetryBudget(RetryBudget retryBudget) {
+    if (this.retryBudget != retryBudget) {
+      unexportRetryBudget(metricsRegistry, this.retryBudget);
+    }
+    this.retryBudget = retryBudget;
+    exportRetryBudget(metricsRegistry, retryBudget);
+  }
+
+  public MetricsRegistry getMetricsRegistry() {
+    return metricsRegistry;
+  }
+
+  /**
+   * Set the registry recording the latency of calls by endpoint, null not to record.
+   */
+  public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+    if (this.metricsRegistry != metricsRegistry) {
+      unexportRetryBudget(this.metricsRegistry, retryBudget);
+    }
+    this.metricsRegistry = metricsRegistry;
+    exportRetryBudget(metricsRegistry, retryBudget);
+  }
+
+  public AdaptiveTimeout getAdaptiveTimeout() {
+    return adaptiveTimeout;
+  }
+
+  /**
+   * Derive the timeouts of the built clients from the latency observed, null to always use the
+   * request timeout, which is the default.
+   */
+  public void setAdaptiveTimeout(AdaptiveTimeout adaptiveTimeout) {
+    this.adaptiveTimeout = adaptiveTimeout;
+  }
+
+  public TransportProfile getTransportProfile() {
+    DihClientPool pool = clientPool;
+    return pool == null ? null : pool.getProfile();
+  }
+
+  /**
+   * Build the clients with the given protocol, transport and socket options, over connections kept
+   * open between calls, instead of with the defaults of {@link GenericThriftClientFactory}. The
+   * profile must match what DIH serves. Null goes back to the defaults.
+   */
+  public synchronized void setTransportProfile(TransportProfile transportProfile) {
+    DihClientPool oldPool = clientPool;
+    clientPool = transportProfile == null ? null
+        : new DihClientPool(transportProfile, connectionTimeoutMs);
+    if (oldPool != null) {
+      oldPool.close();
+    }
+  }
+
+  public DihClientPool getClientPool() {
+    return clientPool;
+  }
+
+  public synchronized void close() {
+    if (clientPool != null) {
+      clientPool.close();
+      clientPool = null;
+    }
     if (genericClientFactory != null) {
       genericClientFactory.close();
       genericClientFactory = null;
@@ -74,4 +212,38 @@ public class DihClientFactory {
     return genericClientFactory;
   }
 
+  /**
+   * Export the counters of the retry budget as gauges. The gauges of the process-wide budget are
+   * untagged, the ones of another budget are tagged by its identity. The gauges only hold the
+   * budget, so that the factories can be collected.
+   */
+  private static void exportRetryBudget(MetricsRegistry registry, RetryBudget budget) {
+    if (registry == null || budget == null) {
+      return;
+    }
+
+    String tag = retryBudgetTag(budget);
+    registry.gauge("dih.retry.budget.tokens" + tag, () -> (long) budget.getAvailableTokens());
+    registry.gauge("dih.retry.budget.success" + tag, budget::getSuccessCount);
+    registry.gauge("dih.retry.budget.retry" + tag, budget::getRetryCount);
+    registry.gauge("dih.retry.budget.rejected" + tag, budget::getRejectedRetryCount);
+  }
+
+  private static void unexportRetryBudget(MetricsRegistry registry, RetryBudget budget) {
+    // the process-wide budget may still be used by other factories
+    if (registry == null || budget == null || budget == RetryBudget.getDefault()) {
+      return;
+    }
+
+    String tag = retryBudgetTag(budget);
+    registry.removeGauge("dih.retry.budget.tokens" + tag);
+    registry.removeGauge("dih.retry.budget.success" + tag);
+    registry.removeGauge("dih.retry.budget.retry" + tag);
+    registry.removeGauge("dih.retry.budget.rejected" + tag);
+  }
+
+  private static String retryBudgetTag(RetryBudget budget) {
+    return budget == RetryBudget.getDefault() ? ""
+        : "{" + Integer.toHexString(System.identityHashCode(budget)) + "}";
+  }
 }
@@ -14,14 +14,18 @@
 
 package py.dih.client;
 
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import py.common.RequestIdBuilder;
 import py.common.struct.EndPoint;
 import py.dih.common.SessionId;
 import py.exception.IllegalIndexException;
+import py.icshare.AlarmInfo;
 import py.instance.DcType;
 import py.instance.Group;
 import py.instance.Instance;
@@ -31,9 +35,11 @@ import py.instance.Location;
 import py.instance.PortType;
 import py.thrift.distributedinstancehub.service.DcTypeThrift;
 import py.thrift.distributedinstancehub.service.EndPointThrift;
+import py.thrift.distributedinstancehub.service.HeartBeatRequest;
 import py.thrift.distributedinstancehub.service.InstanceStatusThrift;
 import py.thrift.distributedinstancehub.service.InstanceThrift;
 import py.thrift.distributedinstancehub.service.SessionIdThrift;
+import py.thrift.distributedinstancehub.service.Syslog;
 import py.thrift.share.GroupThrift;
 
 /**
@@ -44,6 +50,9 @@ import py.thrift.share.GroupThrift;
 public class DihClientRequestResponseHelper {
   private static final Logger logger = LoggerFactory
       .getLogger(DihClientRequestResponseHelper.class);
+  // StdDateFormat is not thread safe, keep one per thread instead of one per record
+  private static final ThreadLocal<StdDateFormat> syslogDateFormat = ThreadLocal
+      .withInitial(StdDateFormat::new);
 
   public static GroupThrift buildThriftGroupFrom(Group group) {
     if (group == null) {
@@ -130,6 +139,34 @@ public class DihClientRequestResponseHelper {
     return instanceThrift;
   }
 
+  /**
+   * Build the heartbeat request of the instance.
+   */
+  public static HeartBeatRequest buildHeartBeatRequest(Instance instance) {
+    HeartBeatRequest request = new HeartBeatRequest();
+    request.setRequestId(RequestIdBuilder.get());
+    request.setInstance(buildThriftInstanceFrom(instance));
+    return request;
+  }
+
+  /**
+   * Build the alarm from a syslog record.
+   *
+   * @throws ParseException if the time stamp of the record can not be parsed
+   */
+  public static AlarmInfo buildAlarmInfoFrom(Syslog syslog) throws ParseException {
+    AlarmInfo alarmInfo = new AlarmInfo();
+    alarmInfo.setTimeStamp(syslogDateFormat.get().parse(syslog.getTimeStamp()).getTime());
+    alarmInfo.setSourceObject(syslog.getSourceObject());
+    alarmInfo.setDescription(syslog.getDescription());
+    alarmInfo.setType(syslog.getType());
+    alarmInfo.setLevel(syslog.getLevel());
+    alarmInfo.setEndpoint(new EndPoint());
+    alarmInfo.setOper(syslog.isAlarmAppear() ? AlarmInfo.AlarmOper.APPEAR
+        : AlarmInfo.AlarmOper.DISAPPEAR);
+    return alarmInfo;
+  }
+
   public static Group convert(GroupThrift groupFromThrift) {
     Group group = new Group();
     group.setGroupId(groupFromThrift.getGroupId());
@@ -14,18 +14,44 @@
 
 package py.dih.client;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import py.common.PyService;
+import py.common.RequestIdBuilder;
 import py.common.struct.EndPoint;
+import py.dih.client.detector.PhiAccrualFailureDetector;
+import py.dih.client.jfr.FailoverEvent;
+import py.dih.client.jfr.RefreshEvent;
+import py.dih.client.metrics.Histogram;
+import py.dih.client.metrics.MetricsRegistry;
+import py.dih.client.picker.InstancePicker;
+import py.dih.client.picker.RoundRobinPicker;
+import py.dih.client.scheduler.ScheduledTask;
+import py.dih.client.scheduler.SharedScheduler;
+import py.dih.client.scheduler.TaskPriority;
+import py.dih.client.timeout.Deadline;
+import py.dih.client.topology.LocalTopology;
+import py.dih.client.topology.Proximity;
 import py.instance.Instance;
 import py.instance.InstanceId;
 import py.instance.InstanceStatus;
@@ -34,6 +60,9 @@ import py.periodic.Worker;
 import py.periodic.WorkerFactory;
 import py.periodic.impl.ExecutionOptionsReader;
 import py.periodic.impl.PeriodicWorkExecutorImpl;
+import py.thrift.distributedinstancehub.service.GetInstanceRequest;
+import py.thrift.distributedinstancehub.service.GetInstanceResponse;
+import py.thrift.distributedinstancehub.service.InstanceThrift;
 
 /**
  * An instancestore implements InstanceStore that gets instances from DIH. In order to make
@@ -50,12 +79,30 @@ import py.periodic.impl.PeriodicWorkExecutorImpl;
  */
 public class DihInstanceStore implements InstanceStore {
   private static final Logger logger = LoggerFactory.getLogger(DihInstanceStore.class);
+  private static final int MAX_PICK_ATTEMPTS = 3;
   PeriodicWorkExecutorImpl executor = null;
+  private PeriodicWorkExecutorImpl suspectProbeExecutor;
+  private ScheduledTask suspectProbeTask;
+  private SharedScheduler sharedScheduler;
+  private ScheduledTask scheduledTask;
   private EndPoint dihEndPoint;
   private int refreshRate = 10000; // every 10 seconds
   private long requestTimeout = 20000; // default timeout 20 seconds
+  private long refreshDeadline = 0; // no deadline, each attempt has the request timeout
   private AtomicReference<ImmutableBiMap<InstanceId, Instance>> instanceMapRef;
+  /* the healthy instances by name of the current snapshot, rebuilt on first pick after a change */
+  private volatile HealthyIndex healthyIndex;
+  private final InstancePicker defaultPicker = new RoundRobinPicker();
+  private volatile LocalTopology localTopology;
+  private volatile PhiAccrualFailureDetector failureDetector;
+  private int suspectProbeRate = 0;
+  private double suspectProbePhi = 1;
   private boolean hasBeenInitialized = false;
+  /* when the instances were last retrieved from DIH successfully, 0 if never */
+  private volatile long lastRefreshTime = 0;
+  private final Object refreshLock = new Object();
+  private final CompletableFuture<DihInstanceStore> readyFuture = new CompletableFuture<>();
+  private volatile List<EndPoint> bootstrapPeers = Collections.emptyList();
 
   /**
    * when dih restart, the worker will get newly instances from dih. but instance kept older
@@ -66,11 +113,44 @@ public class DihInstanceStore implements InstanceStore {
 
   private DihClientFactory dihClientFactory;
 
+  private final String name;
+  private final Histogram refreshLatency;
+  private final LongAdder refreshFailureCount;
+  private final LongAdder failoverCount;
+
   private DihInstanceStore() /* throws Exception */ {
+    this(null);
+  }
+
+  /**
+   * Create a store of a DIH cluster besides the singleton, e.g. to track several clusters in one
+   * process. Set the same {@link SharedScheduler} and {@link DihClientFactory} to the stores so
+   * that they share the threads and connections.
+   *
+   * @param name the name of the cluster, which tags the metrics and tasks of the store
+   */
+  public DihInstanceStore(String name) {
+    this.name = name;
     this.instanceMapRef = new AtomicReference<ImmutableBiMap<InstanceId, Instance>>();
     ImmutableBiMap.Builder<InstanceId, Instance> builder 
         = new ImmutableBiMap.Builder<InstanceId, Instance>();
     instanceMapRef.set(builder.build());
+
+    refreshLatency = MetricsRegistry.getDefault().histogram(tagged("dih.store.refresh.us"));
+    refreshFailureCount = MetricsRegistry.getDefault().counter(tagged("dih.store.refresh.failure"));
+    failoverCount = MetricsRegistry.getDefault().counter(tagged("dih.store.failover"));
+    MetricsRegistry.getDefault().gauge(tagged("dih.store.snapshot.size"),
+        () -> instanceMapRef.get().size());
+    MetricsRegistry.getDefault().gauge(tagged("dih.store.snapshot.ageMs"),
+        () -> lastRefreshTime == 0 ? -1 : System.currentTimeMillis() - lastRefreshTime);
+  }
+
+  private String tagged(String metricOrTask) {
+    return name == null ? metricOrTask : metricOrTask + "{" + name + "}";
+  }
+
+  public String getName() {
+    return name;
   }
 
   public static DihInstanceStore getSingleton() {
@@ -109,19 +189,111 @@ public class DihInstanceStore implements InstanceStore {
     this.requestTimeout = requestTimeout;
   }
 
+  public long getRefreshDeadline() {
+    return refreshDeadline;
+  }
+
+  /**
+   * Bound a refresh including its failovers to other DIH by the given time, so that a hung DIH
+   * leaves the failovers only the rest of it. Each attempt has the request timeout if not
+   * positive, which is the default.
+   */
+  public void setRefreshDeadline(long refreshDeadline) {
+    this.refreshDeadline = refreshDeadline;
+  }
+
+  /**
+   * Get the future completed by the first successful refresh, or completed exceptionally if the
+   * store is closed before it.
+   */
+  public CompletableFuture<DihInstanceStore> getReadyFuture() {
+    return readyFuture;
+  }
+
+  /**
+   * Whether the instances have been retrieved from DIH at least once.
+   */
+  public boolean isReady() {
+    return readyFuture.isDone() && !readyFuture.isCompletedExceptionally();
+  }
+
+  /**
+   * Wait for the first successful refresh.
+   *
+   * @return false if the store is not ready within the timeout, or closed
+   */
+  public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+    try {
+      readyFuture.get(timeout, unit);
+      return true;
+    } catch (TimeoutException | ExecutionException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Refresh the store on the caller thread now, e.g. not to wait for the first tick at startup. A
+   * scheduled refresh in progress is waited for.
+   *
+   * @return whether the instances were retrieved
+   */
+  public boolean refreshNow() {
+    synchronized (refreshLock) {
+      return new RetrieveInstancesWorker().refresh();
+    }
+  }
+
+  /**
+   * Set the DIH to fail over to when none is known from the instances yet, i.e. before the first
+   * refresh succeeds.
+   */
+  public void setBootstrapPeers(Collection<EndPoint> bootstrapPeers) {
+    this.bootstrapPeers = new ArrayList<>(bootstrapPeers);
+  }
+
+  /**
+   * Refresh the store on the given shared scheduler instead of a dedicated executor.
+   */
+  public void setSharedScheduler(SharedScheduler sharedScheduler) {
+    this.sharedScheduler = sharedScheduler;
+  }
+
   public void init() throws Exception {
     if (!hasBeenInitialized) {
-      // logger.debug("The {}",);
-      executor = new PeriodicWorkExecutorImpl(null, null, "pull-instance-from-dih");
-      ExecutionOptionsReader optionReader = new ExecutionOptionsReader(1, 1, refreshRate, null);
-      executor.setWorkerFactory(new WorkerFactory() {
-        @Override
-        public Worker createWorker() {
-          return new RetrieveInstancesWorker();
+      if (failureDetector != null && failureDetector.getMinStdDeviationMs() < refreshRate) {
+        logger.warn("the minimum standard deviation {}ms of the failure detector is less than the"
+                + " refresh rate {}ms, instances may be suspected falsely",
+            failureDetector.getMinStdDeviationMs(), refreshRate);
+      }
+      if (sharedScheduler != null) {
+        scheduledTask = sharedScheduler.schedule(tagged("pull-instance-from-dih"),
+            TaskPriority.NORMAL, refreshRate, RetrieveInstancesWorker::new);
+      } else {
+        executor = new PeriodicWorkExecutorImpl(null, null,
+            tagged("pull-instance-from-dih"));
+        ExecutionOptionsReader optionReader = new ExecutionOptionsReader(1, 1, refreshRate,
+            null);
+        executor.setWorkerFactory(new WorkerFactory() {
+          @Override
+          public Worker createWorker() {
+            return new RetrieveInstancesWorker();
+          }
+        });
+        executor.setExecutionOptionsReader(optionReader);
+        executor.start();
+      }
+
+      if (failureDetector != null && suspectProbeRate > 0) {
+        if (sharedScheduler != null) {
+          suspectProbeTask = sharedScheduler.schedule(tagged("probe-suspect-instance"),
+              TaskPriority.NORMAL, suspectProbeRate, ProbeSuspectsWorker::new);
+        } else {
+          suspectProbeExecutor = new PeriodicWorkExecutorImpl(
+              new ExecutionOptionsReader(1, 1, suspectProbeRate, null), ProbeSuspectsWorker::new,
+              tagged("probe-suspect-instance"));
+          suspectProbeExecutor.start();
         }
-      });
-      executor.setExecutionOptionsReader(optionReader);
-      executor.start();
+      }
     }
 
     hasBeenInitialized = true;
@@ -130,9 +302,23 @@ public class DihInstanceStore implements InstanceStore {
   @Override
   public void close() {
     logger.warn("close the instance retriever", new Exception());
+    if (scheduledTask != null) {
+      scheduledTask.cancel();
+    }
     if (executor != null) {
       executor.stop();
     }
+    if (suspectProbeTask != null) {
+      suspectProbeTask.cancel();
+    }
+    if (suspectProbeExecutor != null) {
+      suspectProbeExecutor.stop();
+    }
+    readyFuture.completeExceptionally(new IllegalStateException("the store is closed"));
+    if (name != null) {
+      MetricsRegistry.getDefault().removeGauge(tagged("dih.store.snapshot.size"));
+      MetricsRegistry.getDefault().removeGauge(tagged("dih.store.snapshot.ageMs"));
+    }
   }
 
   @Override
@@ -223,10 +409,263 @@ public class DihInstanceStore implements InstanceStore {
     return null;
   }
 
+  /**
+   * Pick one healthy instance of the service in turn.
+   *
+   * @return null if the service has no healthy instance
+   */
+  public Instance pick(String name) {
+    return pick(name, defaultPicker);
+  }
+
+  /**
+   * Pick one healthy instance of the service by the picker. The candidates are computed once per
+   * snapshot of the store, so picking does not allocate.
+   *
+   * @return null if the service has no healthy instance
+   */
+  public Instance pick(String name, InstancePicker picker) {
+    Instance[] candidates = getHealthyIndex().instancesByName.get(name);
+    if (candidates == null) {
+      return null;
+    }
+    Instance instance = pickUnsuspected(candidates, picker);
+    return instance != null ? instance : picker.pick(candidates);
+  }
+
+  /**
+   * Get the healthy instances of the service, the nearest to the local service first.
+   *
+   * @see #setLocalTopology(LocalTopology)
+   */
+  public List<Instance> getNearest(String name) {
+    List<Instance> instances = getHealthyIndex().nearestByName.get(name);
+    return instances == null ? ImmutableList.of() : instances;
+  }
+
+  /**
+   * Pick one of the nearest healthy instances of the service in turn.
+   *
+   * @return null if the service has no healthy instance
+   */
+  public Instance pickNearest(String name) {
+    return pickNearest(name, defaultPicker);
+  }
+
+  /**
+   * Pick one of the nearest healthy instances of the service by the picker, the instances farther
+   * are only picked if there is none nearer.
+   *
+   * @return null if the service has no healthy instance
+   */
+  public Instance pickNearest(String name, InstancePicker picker) {
+    Instance[][] tiers = getHealthyIndex().tiersByName.get(name);
+    if (tiers == null) {
+      return null;
+    }
+    for (Instance[] tier : tiers) {
+      if (tier.length > 0) {
+        Instance instance = pickUnsuspected(tier, picker);
+        if (instance != null) {
+          return instance;
+        }
+      }
+    }
+    // all are suspected, the nearest is still better than none
+    for (Instance[] tier : tiers) {
+      if (tier.length > 0) {
+        return picker.pick(tier);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Pick an instance not suspected by the failure detector, give up after a few attempts.
+   *
+   * @return null if only suspected instances are picked
+   */
+  private Instance pickUnsuspected(Instance[] candidates, InstancePicker picker) {
+    Instance instance = picker.pick(candidates);
+    PhiAccrualFailureDetector detector = failureDetector;
+    if (detector == null) {
+      return instance;
+    }
+
+    long now = System.currentTimeMillis();
+    for (int i = 1; i < MAX_PICK_ATTEMPTS; i++) {
+      if (!detector.isSuspected(instance.getId(), now)) {
+        return instance;
+      }
+      instance = picker.pick(candidates);
+    }
+    return detector.isSuspected(instance.getId(), now) ? null : instance;
+  }
+
+  public PhiAccrualFailureDetector getFailureDetector() {
+    return failureDetector;
+  }
+
+  /**
+   * Track the heartbeat counters of the instances by the detector, the instances it suspects are
+   * avoided by the pick methods. Set it before {@link #init()}.
+   */
+  public void setFailureDetector(PhiAccrualFailureDetector failureDetector) {
+    this.failureDetector = failureDetector;
+  }
+
+  /**
+   * Get the suspicion phi of the instance, 0 without a failure detector.
+   */
+  public double getSuspicion(InstanceId instanceId) {
+    PhiAccrualFailureDetector detector = failureDetector;
+    return detector == null ? 0 : detector.phi(instanceId, System.currentTimeMillis());
+  }
+
+  public boolean isSuspected(InstanceId instanceId) {
+    PhiAccrualFailureDetector detector = failureDetector;
+    return detector != null && detector.isSuspected(instanceId, System.currentTimeMillis());
+  }
+
+  public int getSuspectProbeRate() {
+    return suspectProbeRate;
+  }
+
+  /**
+   * Fetch the instances whose suspicion reaches the probe phi at this rate, faster than the
+   * refreshes, to clear the suspicion sooner when they are alive. A probe never raises the
+   * suspicion, which only grows with the refreshes. Not fetched if not positive.
+   */
+  public void setSuspectProbeRate(int suspectProbeRate) {
+    this.suspectProbeRate = suspectProbeRate;
+  }
+
+  public void setSuspectProbePhi(double suspectProbePhi) {
+    this.suspectProbePhi = suspectProbePhi;
+  }
+
+  public LocalTopology getLocalTopology() {
+    return localTopology;
+  }
+
+  /**
+   * Set where the local service is, by which the instances are ordered for the nearest lookups.
+   * Without it all instances are equally near.
+   */
+  public void setLocalTopology(LocalTopology localTopology) {
+    this.localTopology = localTopology;
+  }
+
+  private HealthyIndex getHealthyIndex() {
+    ImmutableBiMap<InstanceId, Instance> instanceMap = instanceMapRef.get();
+    LocalTopology topology = localTopology;
+    HealthyIndex index = healthyIndex;
+    if (index == null || index.instanceMap != instanceMap || index.topology != topology) {
+      index = new HealthyIndex(instanceMap, topology);
+      healthyIndex = index;
+    }
+    return index;
+  }
+
+  /**
+   * Replace the instances in store, which are otherwise only changed by the periodic worker.
+   */
+  @VisibleForTesting
+  void resetInstances(Collection<Instance> instances) {
+    ImmutableBiMap.Builder<InstanceId, Instance> builder = new ImmutableBiMap.Builder<>();
+    for (Instance instance : instances) {
+      builder.put(instance.getId(), instance);
+    }
+    instanceMapRef.set(builder.build());
+  }
+
   private static class LazyHolder {
     private static final DihInstanceStore singletonInstance = new DihInstanceStore();
   }
 
+  private static class HealthyIndex {
+    private final ImmutableBiMap<InstanceId, Instance> instanceMap;
+    private final LocalTopology topology;
+    private final Map<String, Instance[]> instancesByName;
+    /* the instances of each name by proximity, indexed by its ordinal */
+    private final Map<String, Instance[][]> tiersByName = new HashMap<>();
+    private final Map<String, List<Instance>> nearestByName = new HashMap<>();
+
+    private HealthyIndex(ImmutableBiMap<InstanceId, Instance> instanceMap,
+        LocalTopology topology) {
+      Map<String, List<Instance>> lists = new HashMap<>();
+      for (Instance instance : instanceMap.values()) {
+        if (instance.getStatus() == InstanceStatus.HEALTHY) {
+          lists.computeIfAbsent(instance.getName(), name -> new ArrayList<>()).add(instance);
+        }
+      }
+
+      Map<String, Instance[]> arrays = new HashMap<>();
+      for (Map.Entry<String, List<Instance>> entry : lists.entrySet()) {
+        Instance[] instances = entry.getValue().toArray(new Instance[0]);
+        // a stable order keeps round robin fair across snapshots
+        Arrays.sort(instances, Comparator.comparingLong(instance -> instance.getId().getId()));
+        arrays.put(entry.getKey(), instances);
+      }
+      this.instanceMap = instanceMap;
+      this.topology = topology;
+      this.instancesByName = arrays;
+
+      Proximity[] proximities = Proximity.values();
+      for (Map.Entry<String, Instance[]> entry : arrays.entrySet()) {
+        List<List<Instance>> tierLists = new ArrayList<>(proximities.length);
+        for (int i = 0; i < proximities.length; i++) {
+          tierLists.add(new ArrayList<>());
+        }
+        for (Instance instance : entry.getValue()) {
+          Proximity proximity = topology == null ? Proximity.SAME_GROUP
+              : topology.proximityOf(instance);
+          tierLists.get(proximity.ordinal()).add(instance);
+        }
+
+        Instance[][] tiers = new Instance[proximities.length][];
+        ImmutableList.Builder<Instance> nearest = ImmutableList.builder();
+        for (int i = 0; i < proximities.length; i++) {
+          tiers[i] = tierLists.get(i).toArray(new Instance[0]);
+          nearest.add(tiers[i]);
+        }
+        tiersByName.put(entry.getKey(), tiers);
+        nearestByName.put(entry.getKey(), nearest.build());
+      }
+    }
+  }
+
+  /**
+   * Fetch the suspected instances one by one, to observe their heartbeat counters.
+   */
+  class ProbeSuspectsWorker implements Worker {
+    @Override
+    public void doWork() throws Exception {
+      PhiAccrualFailureDetector detector = failureDetector;
+      List<InstanceId> suspects = detector.getSuspects(suspectProbePhi,
+          System.currentTimeMillis());
+      if (suspects.isEmpty()) {
+        return;
+      }
+
+      logger.debug("probe the suspected instances {}", suspects);
+      DihServiceBlockingClientWrapper client = dihClientFactory
+          .build(dihEndPoint, requestTimeout, "probeInstance");
+      for (InstanceId instanceId : suspects) {
+        try {
+          Instance instance = client.getInstance(instanceId.getId());
+          if (instance != null) {
+            detector.observeProbe(instanceId, instance.getHeartBeatCounter(),
+                System.currentTimeMillis());
+          }
+        } catch (Exception e) {
+          logger.warn("can not probe the suspected instance {} from {}", instanceId, dihEndPoint);
+          return;
+        }
+      }
+    }
+  }
+
   class RetrieveInstancesWorker implements Worker {
     private static final int REFRESHING_TIME_UPPER_BOUND = 3;
 
@@ -239,21 +678,41 @@ public class DihInstanceStore implements InstanceStore {
           endPointList.add(instance.getEndPoint());
         }
       }
+      if (endPointList.isEmpty()) {
+        // no DIH is known before the first refresh
+        for (EndPoint peer : bootstrapPeers) {
+          if (!dihEndPoint.equals(peer)) {
+            endPointList.add(peer);
+          }
+        }
+      }
       return endPointList;
     }
 
     public void doWork() throws Exception {
+      synchronized (refreshLock) {
+        refresh();
+      }
+    }
+
+    /**
+     * Retrieve the instances from DIH, failing over to other DIH if needed, and replace the
+     * snapshot. The caller must hold the refresh lock.
+     *
+     * @return whether the instances were retrieved
+     */
+    boolean refresh() {
+      long startTime = System.nanoTime();
+      RefreshEvent refreshEvent = new RefreshEvent();
+      refreshEvent.begin();
       boolean isException = false;
       ImmutableBiMap.Builder<InstanceId, Instance> newInstanceMapBuilder 
           = new ImmutableBiMap.Builder<InstanceId, Instance>();
 
+      // the failovers share the deadline with the first attempt
+      Deadline.Scope deadlineScope = Deadline.within(refreshDeadline);
       try {
-        DihServiceBlockingClientWrapper client = dihClientFactory
-            .build(dihEndPoint, requestTimeout);
-        for (Instance instance : client.getInstanceAll()) {
-          logger.debug("Got instance from DIH: {}", instance);
-          newInstanceMapBuilder.put(instance.getId(), instance);
-        }
+        retrieveInstances(dihEndPoint, newInstanceMapBuilder, refreshEvent);
       } catch (Exception e) {
         List<EndPoint> endpoints = getActiveDihList();
         logger.warn(
@@ -266,59 +725,142 @@ public class DihInstanceStore implements InstanceStore {
             if (!isException) {
               break;
             }
+            if (Deadline.isExpired()) {
+              logger.warn("no time left to fail over to other DIH");
+              break;
+            }
+            if (!dihClientFactory.getRetryBudget().tryAcquireRetry()) {
+              logger.warn("retry budget is exhausted, stop failing over to other DIH");
+              break;
+            }
+            failoverCount.increment();
+            refreshEvent.failoverCount++;
+            FailoverEvent failoverEvent = new FailoverEvent();
+            failoverEvent.begin();
             try {
               isException = false;
-              DihServiceBlockingClientWrapper client = dihClientFactory.build(ep, requestTimeout);
-              for (Instance instance : client.getInstanceAll()) {
-                logger.debug("Got instance from DIH: {}", instance);
-                newInstanceMapBuilder.put(instance.getId(), instance);
-              }
+              retrieveInstances(ep, newInstanceMapBuilder, refreshEvent);
             } catch (Exception e1) {
               isException = true;
               logger.warn("Caught Exception e1 ep {}", ep);
             }
+            failoverEvent.end();
+            if (failoverEvent.shouldCommit()) {
+              failoverEvent.fromEndPoint = String.valueOf(dihEndPoint);
+              failoverEvent.toEndPoint = String.valueOf(ep);
+              failoverEvent.requestId = refreshEvent.requestId;
+              failoverEvent.succeeded = !isException;
+              failoverEvent.commit();
+            }
           }
         }
       } finally {
+        deadlineScope.close();
         logger.debug("finally process");
-        int refreshingTimes = 0;
-        ImmutableBiMap<InstanceId, Instance> toMergingInstanceMap = newInstanceMapBuilder.build();
-        /*
-         * Give old instance 3 chances to keep existing in local instance store if we cannot get it 
-         * from remote,
-         * no matter it being deleted or something wrong to get it. Once chances lost, remove 
-         * the instance from
-         * local instance store.
-         */
-        for (Instance instance : instanceMapRef.get().values()) {
-          Instance newInstance = toMergingInstanceMap.get(instance.getId());
-          if (newInstance != null) {
-            continue;
-          }
-          if (isException) {
-            // When any exception occurred after round-robin query, keep current state of all .
-            // instances in
-            // store.
-            newInstanceMapBuilder.put(instance.getId(), instance);
-            continue;
-          }
+        mergeOldInstances(newInstanceMapBuilder, isException);
+        if (isException) {
+          refreshFailureCount.increment();
+        }
+        refreshLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+      }
 
-          if (garbageMap.get(instance.getId().getId()) == null) {
-            refreshingTimes = 0;
-            garbageMap.put(instance.getId().getId(), 0);
-          } else {
-            refreshingTimes = garbageMap.get(instance.getId().getId());
-            garbageMap.put(instance.getId().getId(), ++refreshingTimes);
-          }
-          if (refreshingTimes < REFRESHING_TIME_UPPER_BOUND) {
-            newInstanceMapBuilder.put(instance.getId(), instance);
-          } else {
-            garbageMap.remove(instance.getId().getId());
-          }
+      ImmutableBiMap<InstanceId, Instance> oldInstanceMap = instanceMapRef.get();
+      ImmutableBiMap<InstanceId, Instance> newInstanceMap = newInstanceMapBuilder.build();
+      instanceMapRef.set(newInstanceMap);
+      if (failureDetector != null) {
+        failureDetector.retain(newInstanceMap.keySet());
+      }
+      refreshEvent.end();
+      if (refreshEvent.shouldCommit()) {
+        refreshEvent.succeeded = !isException;
+        refreshEvent.changed = !newInstanceMap.equals(oldInstanceMap);
+        refreshEvent.commit();
+      }
+      if (!isException) {
+        readyFuture.complete(DihInstanceStore.this);
+      }
+      return !isException;
+    }
+
+    /**
+     * Retrieve all instances from the given DIH into the builder, nothing is put into the builder
+     * if failed.
+     */
+    private void retrieveInstances(EndPoint endPoint,
+        ImmutableBiMap.Builder<InstanceId, Instance> newInstanceMapBuilder,
+        RefreshEvent refreshEvent) throws Exception {
+      refreshEvent.endPoint = String.valueOf(endPoint);
+      DihServiceBlockingClientWrapper client = dihClientFactory
+          .build(endPoint, requestTimeout, "getInstances");
+      GetInstanceRequest request = new GetInstanceRequest();
+      request.setRequestId(RequestIdBuilder.get());
+      refreshEvent.requestId = request.getRequestId();
+      GetInstanceResponse response = client.getInstances(request);
+
+      long decodeStartTime = System.nanoTime();
+      List<Instance> instances = new ArrayList<>(response.getInstanceList().size());
+      for (InstanceThrift instanceThrift : response.getInstanceList()) {
+        instances.add(DihClientRequestResponseHelper.buildInstanceFrom(instanceThrift));
+      }
+      refreshEvent.decodeTime = System.nanoTime() - decodeStartTime;
+      refreshEvent.instanceCount = instances.size();
+
+      PhiAccrualFailureDetector detector = failureDetector;
+      long now = System.currentTimeMillis();
+      for (Instance instance : instances) {
+        logger.debug("Got instance from DIH: {}", instance);
+        newInstanceMapBuilder.put(instance.getId(), instance);
+        if (detector != null) {
+          detector.observe(instance.getId(), instance.getHeartBeatCounter(), now);
         }
       }
+      if (detector != null) {
+        detector.onRefresh(now);
+      }
+      dihClientFactory.getRetryBudget().onSuccess();
+      lastRefreshTime = System.currentTimeMillis();
+    }
 
-      instanceMapRef.set(newInstanceMapBuilder.build());
+    /**
+     * Merge the instances in store but not retrieved this time into the builder.
+     */
+    void mergeOldInstances(ImmutableBiMap.Builder<InstanceId, Instance> newInstanceMapBuilder,
+        boolean isException) {
+      int refreshingTimes = 0;
+      ImmutableBiMap<InstanceId, Instance> toMergingInstanceMap = newInstanceMapBuilder.build();
+      /*
+       * Give old instance 3 chances to keep existing in local instance store if we cannot get it 
+       * from remote,
+       * no matter it being deleted or something wrong to get it. Once chances lost, remove 
+       * the instance from
+       * local instance store.
+       */
+      for (Instance instance : instanceMapRef.get().values()) {
+        Instance newInstance = toMergingInstanceMap.get(instance.getId());
+        if (newInstance != null) {
+          continue;
+        }
+        if (isException) {
+          // When any exception occurred after round-robin query, keep current state of all .
+          // instances in
+          // store.
+          newInstanceMapBuilder.put(instance.getId(), instance);
+          continue;
+        }
+
+        if (garbageMap.get(instance.getId().getId()) == null) {
+          refreshingTimes = 0;
+          garbageMap.put(instance.getId().getId(), 0);
+        } else {
+          refreshingTimes = garbageMap.get(instance.getId().getId());
+          garbageMap.put(instance.getId().getId(), ++refreshingTimes);
+        }
+        if (refreshingTimes < REFRESHING_TIME_UPPER_BOUND) {
+          newInstanceMapBuilder.put(instance.getId(), instance);
+        } else {
+          garbageMap.remove(instance.getId().getId());
+        }
+      }
     }
   }
 }
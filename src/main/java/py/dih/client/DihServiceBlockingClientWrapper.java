@@ -14,10 +14,8 @@
 
 package py.dih.client;
 
-import com.fasterxml.jackson.databind.util.StdDateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -27,6 +25,7 @@ import org.apache.thrift.TException;
 import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import py.aop.annotation.Retry;
 import py.common.RequestIdBuilder;
 import py.common.struct.EndPoint;
 import py.icshare.AlarmInfo;
@@ -52,6 +51,10 @@ import py.thrift.share.ServiceHavingBeenShutdownThrift;
 /**
  * A class as a wrapper includes some common used remote process call.
  *
+ * <p>The {@link Retry} annotations on the methods having the same signature as
+ * {@link DistributedInstanceHub.Iface} describe how those calls are retried when the client is
+ * built by a {@link DihClientFactory} with retry enabled.
+ *
  * @author liy
  */
 public class DihServiceBlockingClientWrapper {
@@ -68,6 +71,7 @@ public class DihServiceBlockingClientWrapper {
     return this.delegate;
   }
 
+  @Retry(times = 2, period = 1, when = TTransportException.class)
   public void ping() throws TException {
     delegate.ping();
 
@@ -78,13 +82,12 @@ public class DihServiceBlockingClientWrapper {
   }
 
   public void heartBeat(Instance instance) throws TException {
-    HeartBeatRequest request = new HeartBeatRequest();
-    request.setRequestId(RequestIdBuilder.get());
-    request.setInstance(DihClientRequestResponseHelper.buildThriftInstanceFrom(instance));
+    HeartBeatRequest request = DihClientRequestResponseHelper.buildHeartBeatRequest(instance);
     logger.debug("heart beat request: {},", request);
     heartBeat(request);
   }
 
+  @Retry(times = 2, period = 1, when = TTransportException.class)
   public GetInstanceResponse getInstances(GetInstanceRequest request) throws TException {
     return delegate.getInstances(request);
   }
@@ -234,43 +237,54 @@ public class DihServiceBlockingClientWrapper {
   public List<AlarmInfo> getSyslog(long lastReportTime) throws TException {
     // logger.debug("Get syslog from time-stamp : {}", Utils.millsecondToString(lastReportTime));
     List<AlarmInfo> alarmInfos = new ArrayList<AlarmInfo>();
+    consumeSyslog(lastReportTime, alarmInfos::add);
+    logger.debug("All alarm informations are : {}", alarmInfos);
+    return alarmInfos;
+  }
 
+  /**
+   * Hand the syslog records reported after the given time to the consumer one by one, without
+   * collecting them. A record which can not be converted is skipped, the rest of the records are
+   * still consumed.
+   *
+   * @return the number of records accepted by the consumer
+   */
+  public int consumeSyslog(long lastReportTime, SyslogConsumer consumer) throws TException {
+    GetSyslogResponse response;
     try {
       GetSyslogRequest request = new GetSyslogRequest();
       request.setLastReportTime(lastReportTime);
-      GetSyslogResponse response = delegate.getSyslog(request);
-      List<Syslog> syslogs = response.getSyslogs();
-      for (Syslog syslog : syslogs) {
-        AlarmInfo alarmInfo = new AlarmInfo();
-        Date date = new Date();
-
-        StdDateFormat dataFormat = new StdDateFormat();
-        Date parse;
-        try {
-          parse = dataFormat.parse(syslog.getTimeStamp());
-        } catch (ParseException e) {
-          logger.error("Caught an exception when parse the time data", e);
-          continue;
-        }
-        alarmInfo.setTimeStamp(parse.getTime());
-        alarmInfo.setSourceObject(syslog.getSourceObject());
-        alarmInfo.setDescription(syslog.getDescription());
-        alarmInfo.setType(syslog.getType());
-        alarmInfo.setLevel(syslog.getLevel());
-        alarmInfo.setEndpoint(new EndPoint());
-        AlarmInfo.AlarmOper alarmOper = syslog.isAlarmAppear() ? AlarmInfo.AlarmOper.APPEAR
-            : AlarmInfo.AlarmOper.DISAPPEAR;
-        alarmInfo.setOper(alarmOper);
-
-        alarmInfos.add(alarmInfo);
-      }
-
-      logger.debug("All alarm informations are : {}", alarmInfos);
-      return alarmInfos;
+      response = delegate.getSyslog(request);
+    } catch (TException e) {
+      throw e;
     } catch (Exception e) {
       logger.error("Caught an exception", e);
-      throw new TException();
+      throw new TException(e);
     }
 
+    int accepted = 0;
+    for (Syslog syslog : response.getSyslogs()) {
+      AlarmInfo alarmInfo;
+      try {
+        alarmInfo = DihClientRequestResponseHelper.buildAlarmInfoFrom(syslog);
+      } catch (ParseException e) {
+        logger.error("Caught an exception when parse the time data", e);
+        continue;
+      } catch (Exception e) {
+        logger.error("Caught an exception when convert the syslog {}, skip it", syslog, e);
+        continue;
+      }
+
+      try {
+        if (!consumer.accept(alarmInfo)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TException(e);
+      }
+      accepted++;
+    }
+    return accepted;
   }
 }
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.struct.EndPoint;
+import py.exception.IllegalIndexException;
+import py.instance.DcType;
+import py.instance.Group;
+import py.instance.Instance;
+import py.instance.InstanceId;
+import py.instance.InstanceStatus;
+import py.instance.Location;
+import py.instance.PortType;
+
+/**
+ * A compact binary codec for snapshots of instances, streamed over NIO channels.
+ *
+ * <p>A stream starts with a magic number and a version byte, followed by the instances, each
+ * starting with {@link #TAG_INSTANCE}, and ends with {@link #TAG_END}. Numbers are written as
+ * varints, and signed ones are zigzag encoded first. Strings such as host and service names go
+ * through a dictionary built along the stream: a string is written in full the first time and as
+ * its index afterwards. An endpoint is a port type, a host and a fixed two-byte port.
+ *
+ * <p>Encoders and decoders are not thread safe, each stream uses its own.
+ */
+public class InstanceCodec {
+  public static final int MAGIC = 0x44494849; // "DIHI"
+  public static final byte VERSION = 1;
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+  private static final byte TAG_END = 0;
+  private static final byte TAG_INSTANCE = 1;
+  private static final int STRING_NULL = 0;
+  private static final int STRING_LITERAL = 1;
+  private static final int STRING_REFERENCE_BASE = 2;
+  private static final int MAX_VARINT_BYTES = 10;
+  private static final Logger logger = LoggerFactory.getLogger(InstanceCodec.class);
+
+  private InstanceCodec() {
+  }
+
+  /**
+   * Whether the buffer starts with the magic number of this codec, the buffer is not consumed.
+   */
+  public static boolean isInstanceCodec(ByteBuffer head) {
+    return head.remaining() >= Integer.BYTES && head.getInt(head.position()) == MAGIC;
+  }
+
+  /**
+   * Encode the instances into the channel.
+   */
+  public static void encodeAll(Iterable<Instance> instances, WritableByteChannel channel)
+      throws IOException {
+    Encoder encoder = new Encoder(channel);
+    for (Instance instance : instances) {
+      encoder.encode(instance);
+    }
+    encoder.finish();
+  }
+
+  /**
+   * Decode all instances from the channel.
+   */
+  public static List<Instance> decodeAll(ReadableByteChannel channel) throws IOException {
+    Decoder decoder = new Decoder(channel);
+    List<Instance> instances = new ArrayList<>();
+    Instance instance = decoder.next();
+    while (instance != null) {
+      instances.add(instance);
+      instance = decoder.next();
+    }
+    return instances;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * Write instances one by one to a channel.
+   */
+  public static class Encoder {
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+
+    public Encoder(WritableByteChannel channel) throws IOException {
+      this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor, the header is written at once.
+     */
+    public Encoder(WritableByteChannel channel, int bufferSize) throws IOException {
+      this.channel = channel;
+      this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 64));
+      ensure(Integer.BYTES + 1);
+      buffer.putInt(MAGIC);
+      buffer.put(VERSION);
+    }
+
+    /**
+     * Encode one instance.
+     */
+    public void encode(Instance instance) throws IOException {
+      ensure(1 + MAX_VARINT_BYTES);
+      buffer.put(TAG_INSTANCE);
+      writeVarLong(zigzag(instance.getId().getId()));
+      Group group = instance.getGroup();
+      writeVarLong(group == null ? 0 : zigzag(group.getGroupId()) + 1);
+      writeString(instance.getName());
+      writeString(instance.getStatus() == null ? null : instance.getStatus().name());
+
+      Map<PortType, EndPoint> endPoints = instance.getEndPoints();
+      writeVarLong(endPoints.size());
+      for (Entry<PortType, EndPoint> entry : endPoints.entrySet()) {
+        writeVarLong(entry.getKey().getValue());
+        writeString(entry.getValue().getHostName());
+        ensure(Short.BYTES);
+        buffer.putShort((short) entry.getValue().getPort());
+      }
+
+      writeVarLong(zigzag(instance.getChecksum()));
+      writeVarLong(zigzag(instance.getHeartBeatCounter()));
+      writeString(instance.getLocation() == null ? null : instance.getLocation().toString());
+      ensure(1);
+      buffer.put((byte) (instance.isNetSubHealth() ? 1 : 0));
+      writeString(instance.getDcType() == null ? null : instance.getDcType().name());
+    }
+
+    /**
+     * Write the end of the stream and flush, the channel is not closed.
+     */
+    public void finish() throws IOException {
+      ensure(1);
+      buffer.put(TAG_END);
+      flush();
+    }
+
+    private void writeString(String value) throws IOException {
+      if (value == null) {
+        writeVarLong(STRING_NULL);
+        return;
+      }
+
+      Integer index = dictionary.get(value);
+      if (index != null) {
+        writeVarLong(STRING_REFERENCE_BASE + (long) index);
+        return;
+      }
+
+      dictionary.put(value, dictionary.size());
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarLong(STRING_LITERAL);
+      writeVarLong(bytes.length);
+      int offset = 0;
+      while (offset < bytes.length) {
+        if (!buffer.hasRemaining()) {
+          flush();
+        }
+        int length = Math.min(buffer.remaining(), bytes.length - offset);
+        buffer.put(bytes, offset, length);
+        offset += length;
+      }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      ensure(MAX_VARINT_BYTES);
+      while ((value & ~0x7FL) != 0) {
+        buffer.put((byte) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      buffer.put((byte) value);
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Read instances one by one from a channel.
+   */
+  public static class Decoder {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final List<String> dictionary = new ArrayList<>();
+    private boolean finished = false;
+
+    public Decoder(ReadableByteChannel channel) throws IOException {
+      this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor, the header is read and checked at once.
+     */
+    public Decoder(ReadableByteChannel channel, int bufferSize) throws IOException {
+      this.channel = channel;
+      this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 64));
+      this.buffer.flip();
+      ensure(Integer.BYTES + 1);
+      int magic = buffer.getInt();
+      if (magic != MAGIC) {
+        throw new IOException("not an instance stream, magic " + Integer.toHexString(magic));
+      }
+      byte version = buffer.get();
+      if (version > VERSION) {
+        throw new IOException("unsupported instance stream version " + version);
+      }
+    }
+
+    /**
+     * Decode the next instance.
+     *
+     * @return null at the end of the stream
+     */
+    public Instance next() throws IOException {
+      if (finished) {
+        return null;
+      }
+
+      ensure(1);
+      byte tag = buffer.get();
+      if (tag == TAG_END) {
+        finished = true;
+        return null;
+      } else if (tag != TAG_INSTANCE) {
+        throw new IOException("unknown tag " + tag);
+      }
+
+      InstanceId instanceId = new InstanceId(unzigzag(readVarLong()));
+      long groupValue = readVarLong();
+      Group group = groupValue == 0 ? null : new Group((int) unzigzag(groupValue - 1));
+      String name = readString();
+      String status = readString();
+      Instance instance = new Instance(instanceId, group, name,
+          status == null ? null : InstanceStatus.valueOf(status));
+
+      long endPointCount = readVarLong();
+      for (long i = 0; i < endPointCount; i++) {
+        int portType = (int) readVarLong();
+        String host = readString();
+        ensure(Short.BYTES);
+        int port = buffer.getShort() & 0xFFFF;
+        try {
+          instance.putEndPointByServiceName(PortType.get(portType), new EndPoint(host, port));
+        } catch (IllegalIndexException e) {
+          throw new IOException("unknown port type " + portType, e);
+        }
+      }
+
+      instance.setChecksum(unzigzag(readVarLong()));
+      instance.setHeartBeatCounter(unzigzag(readVarLong()));
+      String location = readString();
+      if (location != null) {
+        try {
+          instance.setLocation(Location.fromString(location));
+        } catch (Exception e) {
+          logger.warn("can't parse {} to Location object", location);
+        }
+      }
+      ensure(1);
+      instance.setNetSubHealth(buffer.get() != 0);
+      String dcType = readString();
+      if (dcType != null) {
+        instance.setDcType(DcType.valueOf(dcType));
+      }
+      return instance;
+    }
+
+    private String readString() throws IOException {
+      long value = readVarLong();
+      if (value == STRING_NULL) {
+        return null;
+      } else if (value >= STRING_REFERENCE_BASE) {
+        long index = value - STRING_REFERENCE_BASE;
+        if (index >= dictionary.size()) {
+          throw new IOException("unknown string reference " + index);
+        }
+        return dictionary.get((int) index);
+      }
+
+      int length = (int) readVarLong();
+      byte[] bytes = new byte[length];
+      int offset = 0;
+      while (offset < length) {
+        ensure(1);
+        int chunk = Math.min(buffer.remaining(), length - offset);
+        buffer.get(bytes, offset, chunk);
+        offset += chunk;
+      }
+      String string = new String(bytes, StandardCharsets.UTF_8);
+      dictionary.add(string);
+      return string;
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        ensure(1);
+        byte b = buffer.get();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("malformed varint");
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (buffer.remaining() >= bytes) {
+        return;
+      }
+
+      buffer.compact();
+      while (buffer.position() < bytes) {
+        if (channel.read(buffer) < 0) {
+          throw new EOFException("unexpected end of instance stream");
+        }
+      }
+      buffer.flip();
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import py.icshare.AlarmInfo;
+
+/**
+ * Consumer of the syslog records streamed from DIH.
+ */
+public interface SyslogConsumer {
+  /**
+   * Consume one record.
+   *
+   * @return false to stop consuming the rest of the records, e.g. when the downstream is full
+   */
+  boolean accept(AlarmInfo alarmInfo) throws InterruptedException;
+}
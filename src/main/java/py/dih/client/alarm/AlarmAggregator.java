@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.alarm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.icshare.AlarmInfo;
+import py.icshare.AlarmInfo.AlarmOper;
+
+/**
+ * Coalesce the identical alarms reported by DIH during an alarm storm.
+ *
+ * <p>Alarms with the same source object, type and level are identical. An alarm is emitted when
+ * its state (APPEAR or DISAPPEAR) changes, or when it comes back after not being seen for a whole
+ * window. The copies in between are coalesced, and a copy seen a window after the last emission
+ * is emitted again. An emitted alarm carries in {@link AlarmInfo#getTimes()} how many copies of
+ * it were aggregated since the last emission, itself included.
+ *
+ * <p>The table of alarms is bounded: the alarms not seen for a window are dropped, and the least
+ * recently seen alarm is evicted when the table is full.
+ *
+ * <p>This class is thread safe.
+ */
+public class AlarmAggregator {
+  public static final long DEFAULT_WINDOW = 60000; // ms
+  public static final int DEFAULT_MAX_ALARMS = 10000;
+  private static final Logger logger = LoggerFactory.getLogger(AlarmAggregator.class);
+
+  private final long window;
+  private final int maxAlarms;
+  private final Map<AlarmKey, AlarmState> alarms = new HashMap<>();
+  // the alarms by the time they were last seen, the least recently seen first
+  private final TreeSet<AlarmState> alarmsBySeen = new TreeSet<>(
+      Comparator.<AlarmState>comparingLong(state -> state.lastSeen)
+          .thenComparingLong(state -> state.sequence));
+  private final AtomicLong receivedCount = new AtomicLong(0);
+  private final AtomicLong emittedCount = new AtomicLong(0);
+  private final AtomicLong coalescedCount = new AtomicLong(0);
+  private final AtomicLong evictedCount = new AtomicLong(0);
+  private long sequence = 0;
+  private AlarmKey lastEmittedKey;
+  private AlarmState lastEmittedPreviousState;
+  private AlarmState lastEvictedState;
+
+  public AlarmAggregator() {
+    this(DEFAULT_WINDOW, DEFAULT_MAX_ALARMS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param window    how long an alarm is remembered since it was last seen, in milliseconds
+   * @param maxAlarms how many distinct alarms are remembered at most
+   */
+  public AlarmAggregator(long window, int maxAlarms) {
+    Validate.isTrue(window > 0, "window must be positive");
+    Validate.isTrue(maxAlarms > 0, "max alarms must be positive");
+    this.window = window;
+    this.maxAlarms = maxAlarms;
+  }
+
+  /**
+   * Aggregate an alarm.
+   *
+   * @return the alarm to emit with the times aggregated, or null if it is coalesced
+   */
+  public synchronized AlarmInfo aggregate(AlarmInfo alarmInfo) {
+    receivedCount.incrementAndGet();
+    long timeStamp = alarmInfo.getTimeStamp();
+    expire(timeStamp);
+
+    AlarmKey key = new AlarmKey(alarmInfo);
+    AlarmState state = alarms.get(key);
+    AlarmState previousState = state == null ? null : state.copy();
+    lastEvictedState = null;
+    if (state != null && state.oper == alarmInfo.getOper()) {
+      state.alarmInfo = alarmInfo;
+      state.times++;
+      touch(state, timeStamp);
+      if (timeStamp - state.lastEmitted < window) {
+        coalescedCount.incrementAndGet();
+        return null;
+      }
+    } else {
+      if (state != null) {
+        alarmsBySeen.remove(state);
+      }
+      state = new AlarmState(key, alarmInfo, sequence++);
+      alarms.put(key, state);
+      alarmsBySeen.add(state);
+      evictIfFull();
+    }
+
+    lastEmittedKey = key;
+    lastEmittedPreviousState = previousState;
+    alarmInfo.setTimes(state.times);
+    state.times = 0;
+    state.lastEmitted = timeStamp;
+    emittedCount.incrementAndGet();
+    return alarmInfo;
+  }
+
+  /**
+   * Revert the last emitted alarm, e.g. when it can not be handed to the downstream, so that it
+   * is emitted again when it is aggregated again. The alarm it evicted is restored as well.
+   */
+  public synchronized void revert(AlarmInfo alarmInfo) {
+    AlarmKey key = new AlarmKey(alarmInfo);
+    if (!key.equals(lastEmittedKey)) {
+      logger.warn("only the last emitted alarm can be reverted, {}", alarmInfo);
+      return;
+    }
+
+    AlarmState state = alarms.remove(key);
+    if (state != null) {
+      alarmsBySeen.remove(state);
+    }
+    if (lastEmittedPreviousState != null) {
+      alarms.put(key, lastEmittedPreviousState);
+      alarmsBySeen.add(lastEmittedPreviousState);
+    }
+    if (lastEvictedState != null && !lastEvictedState.key.equals(key)) {
+      alarms.put(lastEvictedState.key, lastEvictedState);
+      alarmsBySeen.add(lastEvictedState);
+      evictedCount.decrementAndGet();
+    }
+    emittedCount.decrementAndGet();
+    lastEmittedKey = null;
+    lastEmittedPreviousState = null;
+    lastEvictedState = null;
+  }
+
+  /**
+   * Get the alarms currently remembered, each with the number of its copies aggregated since it
+   * was last emitted.
+   */
+  public synchronized List<AlarmInfo> getActiveAlarms() {
+    List<AlarmInfo> activeAlarms = new ArrayList<>(alarms.size());
+    for (AlarmState state : alarms.values()) {
+      AlarmInfo alarmInfo = new AlarmInfo();
+      alarmInfo.setEndpoint(state.alarmInfo.getEndpoint());
+      alarmInfo.setSourceObject(state.alarmInfo.getSourceObject());
+      alarmInfo.setTimeStamp(state.alarmInfo.getTimeStamp());
+      alarmInfo.setDescription(state.alarmInfo.getDescription());
+      alarmInfo.setLevel(state.alarmInfo.getLevel());
+      alarmInfo.setType(state.alarmInfo.getType());
+      alarmInfo.setOper(state.oper);
+      alarmInfo.setTimes(state.times);
+      activeAlarms.add(alarmInfo);
+    }
+    return activeAlarms;
+  }
+
+  public long getReceivedCount() {
+    return receivedCount.get();
+  }
+
+  public long getEmittedCount() {
+    return emittedCount.get();
+  }
+
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  public long getEvictedCount() {
+    return evictedCount.get();
+  }
+
+  private void touch(AlarmState state, long timeStamp) {
+    if (timeStamp > state.lastSeen) {
+      alarmsBySeen.remove(state);
+      state.lastSeen = timeStamp;
+      alarmsBySeen.add(state);
+    }
+  }
+
+  private void expire(long now) {
+    while (!alarmsBySeen.isEmpty() && now - alarmsBySeen.first().lastSeen >= window) {
+      alarms.remove(alarmsBySeen.pollFirst().key);
+    }
+  }
+
+  private void evictIfFull() {
+    if (alarms.size() > maxAlarms) {
+      lastEvictedState = alarmsBySeen.pollFirst();
+      alarms.remove(lastEvictedState.key);
+      evictedCount.incrementAndGet();
+    }
+  }
+
+  private static class AlarmKey {
+    private final String sourceObject;
+    private final String type;
+    private final String level;
+
+    private AlarmKey(AlarmInfo alarmInfo) {
+      this.sourceObject = alarmInfo.getSourceObject();
+      this.type = alarmInfo.getType();
+      this.level = alarmInfo.getLevel();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      AlarmKey that = (AlarmKey) o;
+      return Objects.equals(sourceObject, that.sourceObject) && Objects.equals(type, that.type)
+          && Objects.equals(level, that.level);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(sourceObject, type, level);
+    }
+  }
+
+  private static class AlarmState {
+    private final AlarmKey key;
+    private final long sequence;
+    private AlarmInfo alarmInfo;
+    private AlarmOper oper;
+    private long lastSeen;
+    private long lastEmitted;
+    // copies aggregated since the last emission
+    private long times;
+
+    private AlarmState(AlarmKey key, AlarmInfo alarmInfo, long sequence) {
+      this.key = key;
+      this.sequence = sequence;
+      this.alarmInfo = alarmInfo;
+      this.oper = alarmInfo.getOper();
+      this.lastSeen = alarmInfo.getTimeStamp();
+      this.lastEmitted = alarmInfo.getTimeStamp();
+      this.times = 1;
+    }
+
+    private AlarmState copy() {
+      AlarmState copy = new AlarmState(key, alarmInfo, sequence);
+      copy.oper = oper;
+      copy.lastSeen = lastSeen;
+      copy.lastEmitted = lastEmitted;
+      copy.times = times;
+      return copy;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.alarm;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.lang3.Validate;
+import py.icshare.AlarmInfo;
+
+/**
+ * A bounded in-memory store of the recent alarms, so that the alarms can be queried without
+ * asking DIH again.
+ *
+ * <p>The alarms are kept in arrival order and the oldest ones are evicted first once the store
+ * holds more than {@code maxAlarms} alarms or its estimated memory goes above
+ * {@code maxMemoryBytes}. They are indexed by time stamp for range queries, and by source object
+ * and level. The strings repeated by many alarms are interned.
+ *
+ * <p>The alarms returned by the queries are shared by the store and must not be modified.
+ */
+public class AlarmStore {
+  public static final int DEFAULT_MAX_ALARMS = 100000;
+  public static final long DEFAULT_MAX_MEMORY_BYTES = 64L * 1024 * 1024;
+  // estimated size of an alarm and its index entries besides its description
+  private static final long ALARM_OVERHEAD_BYTES = 256;
+
+  private final int maxAlarms;
+  private final long maxMemoryBytes;
+  private final Interner<String> interner = Interners.newWeakInterner();
+  private final ArrayDeque<StoredAlarm> alarms = new ArrayDeque<>();
+  private final TreeSet<StoredAlarm> timeIndex = new TreeSet<>();
+  private final Map<String, Set<StoredAlarm>> sourceObjectIndex = new HashMap<>();
+  private final Map<String, Set<StoredAlarm>> levelIndex = new HashMap<>();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final AtomicLong evictedCount = new AtomicLong(0);
+  private long sequence = 0;
+  private long memoryBytes = 0;
+
+  public AlarmStore() {
+    this(DEFAULT_MAX_ALARMS, DEFAULT_MAX_MEMORY_BYTES);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxAlarms      how many alarms are kept at most
+   * @param maxMemoryBytes how much memory the alarms take at most, by estimation
+   */
+  public AlarmStore(int maxAlarms, long maxMemoryBytes) {
+    Validate.isTrue(maxAlarms > 0, "max alarms must be positive");
+    Validate.isTrue(maxMemoryBytes > 0, "max memory must be positive");
+    this.maxAlarms = maxAlarms;
+    this.maxMemoryBytes = maxMemoryBytes;
+  }
+
+  /**
+   * Add an alarm, the store keeps its own copy.
+   */
+  public void add(AlarmInfo alarmInfo) {
+    AlarmInfo copy = new AlarmInfo();
+    copy.setEndpoint(alarmInfo.getEndpoint());
+    copy.setSourceObject(intern(alarmInfo.getSourceObject()));
+    copy.setTimeStamp(alarmInfo.getTimeStamp());
+    copy.setDescription(intern(alarmInfo.getDescription()));
+    copy.setLevel(intern(alarmInfo.getLevel()));
+    copy.setType(intern(alarmInfo.getType()));
+    copy.setOper(alarmInfo.getOper());
+    copy.setTimes(alarmInfo.getTimes());
+
+    lock.writeLock().lock();
+    try {
+      StoredAlarm storedAlarm = new StoredAlarm(copy, sequence++);
+      alarms.addLast(storedAlarm);
+      timeIndex.add(storedAlarm);
+      addToIndex(sourceObjectIndex, copy.getSourceObject(), storedAlarm);
+      addToIndex(levelIndex, copy.getLevel(), storedAlarm);
+      memoryBytes += storedAlarm.memoryBytes;
+
+      while (alarms.size() > maxAlarms || memoryBytes > maxMemoryBytes) {
+        evict(alarms.pollFirst());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Get the alarms whose time stamps are in [fromTime, toTime), ordered by time stamp.
+   */
+  public List<AlarmInfo> getRange(long fromTime, long toTime) {
+    lock.readLock().lock();
+    try {
+      if (fromTime >= toTime) {
+        return Collections.emptyList();
+      }
+      return toAlarms(timeIndex.subSet(new StoredAlarm(fromTime, Long.MIN_VALUE), true,
+          new StoredAlarm(toTime, Long.MIN_VALUE), false));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the latest alarms by arrival, the latest one comes first.
+   */
+  public List<AlarmInfo> getLatest(int count) {
+    lock.readLock().lock();
+    try {
+      List<AlarmInfo> latest = new ArrayList<>(Math.min(count, alarms.size()));
+      Iterator<StoredAlarm> iterator = alarms.descendingIterator();
+      while (iterator.hasNext() && latest.size() < count) {
+        latest.add(iterator.next().alarmInfo);
+      }
+      return latest;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public List<AlarmInfo> getBySourceObject(String sourceObject) {
+    return getFromIndex(sourceObjectIndex, sourceObject);
+  }
+
+  public List<AlarmInfo> getByLevel(String level) {
+    return getFromIndex(levelIndex, level);
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return alarms.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getMemoryBytes() {
+    lock.readLock().lock();
+    try {
+      return memoryBytes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getEvictedCount() {
+    return evictedCount.get();
+  }
+
+  private List<AlarmInfo> getFromIndex(Map<String, Set<StoredAlarm>> index, String key) {
+    lock.readLock().lock();
+    try {
+      Set<StoredAlarm> storedAlarms = index.get(key);
+      return storedAlarms == null ? Collections.emptyList() : toAlarms(storedAlarms);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void evict(StoredAlarm storedAlarm) {
+    timeIndex.remove(storedAlarm);
+    removeFromIndex(sourceObjectIndex, storedAlarm.alarmInfo.getSourceObject(), storedAlarm);
+    removeFromIndex(levelIndex, storedAlarm.alarmInfo.getLevel(), storedAlarm);
+    memoryBytes -= storedAlarm.memoryBytes;
+    evictedCount.incrementAndGet();
+  }
+
+  private String intern(String value) {
+    return value == null ? null : interner.intern(value);
+  }
+
+  private static void addToIndex(Map<String, Set<StoredAlarm>> index, String key,
+      StoredAlarm storedAlarm) {
+    index.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(storedAlarm);
+  }
+
+  private static void removeFromIndex(Map<String, Set<StoredAlarm>> index, String key,
+      StoredAlarm storedAlarm) {
+    Set<StoredAlarm> storedAlarms = index.get(key);
+    if (storedAlarms != null) {
+      storedAlarms.remove(storedAlarm);
+      if (storedAlarms.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  private static List<AlarmInfo> toAlarms(Set<StoredAlarm> storedAlarms) {
+    List<AlarmInfo> result = new ArrayList<>(storedAlarms.size());
+    for (StoredAlarm storedAlarm : storedAlarms) {
+      result.add(storedAlarm.alarmInfo);
+    }
+    return result;
+  }
+
+  private static class StoredAlarm implements Comparable<StoredAlarm> {
+    private final AlarmInfo alarmInfo;
+    private final long timeStamp;
+    private final long sequence;
+    private final long memoryBytes;
+
+    private StoredAlarm(AlarmInfo alarmInfo, long sequence) {
+      this.alarmInfo = alarmInfo;
+      this.timeStamp = alarmInfo.getTimeStamp();
+      this.sequence = sequence;
+      String description = alarmInfo.getDescription();
+      this.memoryBytes = ALARM_OVERHEAD_BYTES + (description == null ? 0
+          : 2L * description.length());
+    }
+
+    // a bound for range queries
+    private StoredAlarm(long timeStamp, long sequence) {
+      this.alarmInfo = null;
+      this.timeStamp = timeStamp;
+      this.sequence = sequence;
+      this.memoryBytes = 0;
+    }
+
+    @Override
+    public int compareTo(StoredAlarm other) {
+      int result = Long.compare(timeStamp, other.timeStamp);
+      return result != 0 ? result : Long.compare(sequence, other.sequence);
+    }
+  }
+}
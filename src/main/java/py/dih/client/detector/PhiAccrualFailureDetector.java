@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.detector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import py.instance.InstanceId;
+
+/**
+ * A phi accrual failure detector fed by the heartbeat counters of instances as the client observes
+ * them.
+ *
+ * <p>DIH increases the counter of an instance on each heartbeat it receives, so the counter of a
+ * live instance keeps progressing between two observations. The detector learns the distribution
+ * of the intervals between progresses of each instance, and the suspicion phi of an instance is
+ * how unlikely it is that the counter has not progressed for so long: phi 1 means a 10% chance of a
+ * false suspicion, phi 2 1%, and so on.
+ *
+ * <p>The intervals are observed at the granularity of the refreshes, the minimum standard deviation
+ * should not be less than the refresh rate, and defaults to the default refresh rate of the
+ * instance store. A counter going backwards counts as a progress, the
+ * instance is taken as restarted.
+ *
+ * <p>Once a refresh is reported by {@link #onRefresh}, the time without progress is only counted
+ * up to the last refresh, so a refresh which is slow or fails does not make every instance look
+ * dead at once. A progress seen by {@link #observeProbe} between the refreshes clears the
+ * suspicion, but the interval it ends is not learnt, as it is much shorter than a refresh.
+ */
+public class PhiAccrualFailureDetector {
+  public static final double DEFAULT_THRESHOLD = 8;
+  private static final int DEFAULT_WINDOW_SIZE = 100;
+  private static final long DEFAULT_MIN_STD_DEVIATION_MS = 10000;
+
+  private final ConcurrentHashMap<InstanceId, History> histories = new ConcurrentHashMap<>();
+  private final int windowSize;
+  private final long minStdDeviationMs;
+  private double threshold = DEFAULT_THRESHOLD;
+  private volatile long lastRefreshTime = -1;
+
+  public PhiAccrualFailureDetector() {
+    this(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_STD_DEVIATION_MS);
+  }
+
+  /**
+   * Create a detector.
+   *
+   * @param windowSize        how many of the last intervals are learnt
+   * @param minStdDeviationMs the minimum standard deviation of the intervals
+   */
+  public PhiAccrualFailureDetector(int windowSize, long minStdDeviationMs) {
+    this.windowSize = windowSize;
+    this.minStdDeviationMs = minStdDeviationMs;
+  }
+
+  public long getMinStdDeviationMs() {
+    return minStdDeviationMs;
+  }
+
+  /**
+   * Observe the heartbeat counter of the instance at the given time, by a refresh.
+   */
+  public void observe(InstanceId instanceId, long heartBeatCounter, long nowMs) {
+    historyOf(instanceId).observe(heartBeatCounter, nowMs, false);
+  }
+
+  /**
+   * Observe the heartbeat counter of the instance at the given time, by a probe between the
+   * refreshes.
+   */
+  public void observeProbe(InstanceId instanceId, long heartBeatCounter, long nowMs) {
+    historyOf(instanceId).observe(heartBeatCounter, nowMs, true);
+  }
+
+  /**
+   * Report that all instances were observed by a refresh at the given time.
+   */
+  public void onRefresh(long nowMs) {
+    lastRefreshTime = nowMs;
+  }
+
+  /**
+   * Get the suspicion of the instance at the given time, 0 if it is unknown or has not progressed
+   * twice yet.
+   */
+  public double phi(InstanceId instanceId, long nowMs) {
+    History history = histories.get(instanceId);
+    return history == null ? 0 : history.phi(observedUntil(nowMs), minStdDeviationMs);
+  }
+
+  public boolean isSuspected(InstanceId instanceId, long nowMs) {
+    return phi(instanceId, nowMs) >= threshold;
+  }
+
+  /**
+   * Get the instances whose suspicion reaches the given phi.
+   */
+  public List<InstanceId> getSuspects(double phi, long nowMs) {
+    List<InstanceId> suspects = new ArrayList<>();
+    long until = observedUntil(nowMs);
+    for (Map.Entry<InstanceId, History> entry : histories.entrySet()) {
+      if (entry.getValue().phi(until, minStdDeviationMs) >= phi) {
+        suspects.add(entry.getKey());
+      }
+    }
+    return suspects;
+  }
+
+  /**
+   * Forget the instances not in the given ones.
+   */
+  public void retain(Set<InstanceId> instanceIds) {
+    histories.keySet().retainAll(instanceIds);
+  }
+
+  public double getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Set the phi from which an instance is suspected.
+   */
+  public void setThreshold(double threshold) {
+    this.threshold = threshold;
+  }
+
+  private History historyOf(InstanceId instanceId) {
+    History history = histories.get(instanceId);
+    if (history == null) {
+      history = histories.computeIfAbsent(instanceId, key -> new History(windowSize));
+    }
+    return history;
+  }
+
+  private long observedUntil(long nowMs) {
+    long refreshTime = lastRefreshTime;
+    return refreshTime < 0 ? nowMs : Math.min(nowMs, refreshTime);
+  }
+
+  private static class History {
+    private final long[] intervals;
+    private int count = 0;
+    private int next = 0;
+    private double sum = 0;
+    private double squareSum = 0;
+    private long lastCounter = -1;
+    private long lastProgressTime = -1;
+    // the counter and the time of the last progress seen by a refresh, where intervals start
+    private long lastRefreshCounter = -1;
+    private long lastRefreshProgressTime = -1;
+
+    private History(int windowSize) {
+      this.intervals = new long[windowSize];
+    }
+
+    private synchronized void observe(long counter, long nowMs, boolean isProbe) {
+      if (!isProbe && counter != lastRefreshCounter) {
+        if (lastRefreshProgressTime >= 0 && counter > lastRefreshCounter) {
+          learn(Math.max(0, nowMs - lastRefreshProgressTime));
+        }
+        lastRefreshCounter = counter;
+        lastRefreshProgressTime = nowMs;
+      }
+      if (counter != lastCounter) {
+        lastCounter = counter;
+        lastProgressTime = Math.max(lastProgressTime, nowMs);
+      }
+    }
+
+    private void learn(long interval) {
+      if (count == intervals.length) {
+        sum -= intervals[next];
+        squareSum -= (double) intervals[next] * intervals[next];
+      } else {
+        count++;
+      }
+      intervals[next] = interval;
+      next = (next + 1) % intervals.length;
+      sum += interval;
+      squareSum += (double) interval * interval;
+    }
+
+    private synchronized double phi(long nowMs, long minStdDeviationMs) {
+      if (count == 0) {
+        return 0;
+      }
+      double mean = sum / count;
+      double variance = Math.max(0, squareSum / count - mean * mean);
+      double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviationMs);
+      double elapsed = Math.max(0, nowMs - lastProgressTime);
+
+      // the logistic approximation of the cumulative normal distribution
+      double y = (elapsed - mean) / stdDeviation;
+      double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+      if (elapsed > mean) {
+        return -Math.log10(e / (1.0 + e));
+      } else {
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+      }
+    }
+  }
+}
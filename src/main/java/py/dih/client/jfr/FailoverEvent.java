@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A call retrieving the instances from another DIH, after the local one failed.
+ */
+@Name("py.dih.client.Failover")
+@Label("DIH Failover")
+@Category({"PengYun", "DIH Client"})
+@StackTrace(false)
+public class FailoverEvent extends Event {
+  @Label("From")
+  public String fromEndPoint;
+
+  @Label("To")
+  public String toEndPoint;
+
+  @Label("Request Id")
+  public long requestId;
+
+  @Label("Succeeded")
+  public boolean succeeded;
+}
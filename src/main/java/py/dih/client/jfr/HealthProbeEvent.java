@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A probe of the health of the service itself, which gates its heartbeats.
+ */
+@Name("py.dih.client.HealthProbe")
+@Label("Health Probe")
+@Category({"PengYun", "DIH Client"})
+@StackTrace(false)
+public class HealthProbeEvent extends Event {
+  @Label("Service")
+  public String service;
+
+  @Label("Probe Result")
+  public boolean probeResult;
+
+  @Label("Healthy")
+  @Description("The health after thresholds and flap damping are applied to the probe result")
+  public boolean healthy;
+
+  @Label("Probe Latency")
+  @Timespan(Timespan.MILLISECONDS)
+  public long probeLatency;
+
+  @Label("Failed Channels")
+  public String failedChannels;
+}
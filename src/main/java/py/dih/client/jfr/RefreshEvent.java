@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A cycle retrieving the instances from DIH into the instance store, the duration covers the
+ * calls to every DIH tried.
+ */
+@Name("py.dih.client.Refresh")
+@Label("DIH Refresh")
+@Category({"PengYun", "DIH Client"})
+@StackTrace(false)
+public class RefreshEvent extends Event {
+  @Label("Endpoint")
+  @Description("The DIH the instances are retrieved from, the last one tried if all failed")
+  public String endPoint;
+
+  @Label("Request Id")
+  public long requestId;
+
+  @Label("Instance Count")
+  public int instanceCount;
+
+  @Label("Decode Time")
+  @Timespan
+  public long decodeTime;
+
+  @Label("Failover Count")
+  public int failoverCount;
+
+  @Label("Succeeded")
+  public boolean succeeded;
+
+  @Label("Changed")
+  @Description("Whether the instances published to the store changed")
+  public boolean changed;
+}
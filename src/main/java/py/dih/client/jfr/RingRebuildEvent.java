@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A rebuild of the ring of DIH clients.
+ */
+@Name("py.dih.client.RingRebuild")
+@Label("DIH Ring Rebuild")
+@Category({"PengYun", "DIH Client"})
+@StackTrace(false)
+public class RingRebuildEvent extends Event {
+  @Label("Root Endpoint")
+  public String rootEndPoint;
+
+  @Label("Ring Size")
+  public int ringSize;
+
+  @Label("From Backup File")
+  @Description("Whether the DIH instances were read from the backup file instead of DIH")
+  public boolean fromBackupFile;
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non-negative values with log-linear buckets, precise to about 1/16 of
+ * the recorded value. Recording never allocates.
+ */
+public class Histogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> magnitude) & (SUB_BUCKETS - 1);
+    return (magnitude + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /* the highest value counted in the bucket */
+  private static long valueOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int magnitude = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << magnitude) - 1;
+  }
+
+  public void record(long value) {
+    long normalized = Math.max(0, value);
+    buckets.incrementAndGet(indexOf(normalized));
+    count.increment();
+    sum.add(normalized);
+    max.accumulate(normalized);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Take a snapshot of the recorded values, it is consistent only when no value is being recorded.
+   */
+  public HistogramSnapshot snapshot() {
+    long[] counts = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    long maxValue = max.get();
+    return new HistogramSnapshot(total, total == 0 ? 0 : sum.sum() / total,
+        percentile(counts, total, maxValue, 50), percentile(counts, total, maxValue, 90),
+        percentile(counts, total, maxValue, 99), percentile(counts, total, maxValue, 99.9),
+        maxValue);
+  }
+
+  private static long percentile(long[] counts, long total, long maxValue, double percentile) {
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(valueOf(i), maxValue);
+      }
+    }
+    return maxValue;
+  }
+}
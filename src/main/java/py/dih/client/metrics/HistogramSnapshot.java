@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The summary of a {@link Histogram} at some time.
+ */
+public class HistogramSnapshot {
+  private final long count;
+  private final long mean;
+  private final long p50;
+  private final long p90;
+  private final long p99;
+  private final long p999;
+  private final long max;
+
+  @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+  public HistogramSnapshot(long count, long mean, long p50, long p90, long p99, long p999,
+      long max) {
+    this.count = count;
+    this.mean = mean;
+    this.p50 = p50;
+    this.p90 = p90;
+    this.p99 = p99;
+    this.p999 = p999;
+    this.max = max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMean() {
+    return mean;
+  }
+
+  public long getP50() {
+    return p50;
+  }
+
+  public long getP90() {
+    return p90;
+  }
+
+  public long getP99() {
+    return p99;
+  }
+
+  public long getP999() {
+    return p999;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    return "HistogramSnapshot{count=" + count + ", mean=" + mean + ", p50=" + p50 + ", p90=" + p90
+        + ", p99=" + p99 + ", p999=" + p999 + ", max=" + max + '}';
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A registry of named counters, gauges and histograms, exposed over JMX.
+ *
+ * <p>Metrics are created on first use and live as long as the registry. Counters and histograms
+ * are lock free, callers on hot paths should keep the returned metric instead of looking it up on
+ * each call. Durations are recorded in microseconds, and their names end with ".us".
+ */
+public class MetricsRegistry implements DihClientMetricsMXBean {
+  public static final String OBJECT_NAME = "py.dih.client:type=Metrics";
+  private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+  private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  /**
+   * Get the registry of the process, which is registered to the platform MBean server.
+   */
+  public static MetricsRegistry getDefault() {
+    return LazyHolder.defaultRegistry;
+  }
+
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, key -> new LongAdder());
+  }
+
+  public Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, key -> new Histogram());
+  }
+
+  /**
+   * Register a gauge, it replaces the gauge registered by the same name.
+   */
+  public void gauge(String name, LongSupplier supplier) {
+    gauges.put(name, supplier);
+  }
+
+  public void removeGauge(String name) {
+    gauges.remove(name);
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    Map<String, Long> values = new TreeMap<>();
+    for (Entry<String, LongAdder> entry : counters.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().sum());
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getGauges() {
+    Map<String, Long> values = new TreeMap<>();
+    for (Entry<String, LongSupplier> entry : gauges.entrySet()) {
+      try {
+        values.put(entry.getKey(), entry.getValue().getAsLong());
+      } catch (Exception e) {
+        logger.warn("can not read gauge {}", entry.getKey(), e);
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, HistogramSnapshot> getHistograms() {
+    Map<String, HistogramSnapshot> values = new TreeMap<>();
+    for (Entry<String, Histogram> entry : histograms.entrySet()) {
+      values.put(entry.getKey(), entry.getValue().snapshot());
+    }
+    return values;
+  }
+
+  private void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(objectName)) {
+        server.registerMBean(this, objectName);
+      }
+    } catch (Exception e) {
+      logger.warn("can not register the DIH client metrics to JMX", e);
+    }
+  }
+
+  private static class LazyHolder {
+    private static final MetricsRegistry defaultRegistry = newDefaultRegistry();
+
+    private static MetricsRegistry newDefaultRegistry() {
+      MetricsRegistry registry = new MetricsRegistry();
+      registry.registerMBean();
+      return registry;
+    }
+  }
+}
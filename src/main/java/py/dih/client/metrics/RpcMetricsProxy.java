@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import py.common.struct.EndPoint;
+
+/**
+ * A dynamic proxy recording the latency and the failures of each call on a thrift client, by
+ * endpoint and method, as "dih.rpc.{method}.us{endpoint}" and "dih.rpc.{method}.failure{endpoint}".
+ *
+ * <p>The metrics of every method are looked up once per registry, interface and endpoint, and
+ * shared by the proxies built later, so that a call does not build metric names.
+ *
+ * @param <T> the thrift client interface
+ */
+public class RpcMetricsProxy<T> implements InvocationHandler {
+  private static final ConcurrentHashMap<List<Object>, EndPointMetrics> endPointMetricsMap =
+      new ConcurrentHashMap<>();
+  private final T target;
+  private final EndPointMetrics metrics;
+
+  private RpcMetricsProxy(T target, EndPointMetrics metrics) {
+    this.target = target;
+    this.metrics = metrics;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> T wrap(Class<T> clazz, T target, EndPoint endPoint,
+      MetricsRegistry registry) {
+    EndPointMetrics metrics = endPointMetricsMap.computeIfAbsent(
+        Arrays.asList(registry, clazz, endPoint),
+        key -> new EndPointMetrics(clazz, "{" + endPoint + "}", registry));
+    return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[]{clazz},
+        new RpcMetricsProxy<>(target, metrics));
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      return method.invoke(target, args);
+    }
+
+    MethodMetrics methodMetrics = metrics.of(method);
+    long startTime = System.nanoTime();
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      methodMetrics.failureCount.increment();
+      throw e.getTargetException();
+    } finally {
+      methodMetrics.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+    }
+  }
+
+  private static class EndPointMetrics {
+    private final Map<Method, MethodMetrics> methodMetricsMap = new HashMap<>();
+    private final String endPointTag;
+    private final MetricsRegistry registry;
+
+    private EndPointMetrics(Class<?> clazz, String endPointTag, MetricsRegistry registry) {
+      this.endPointTag = endPointTag;
+      this.registry = registry;
+      for (Method method : clazz.getMethods()) {
+        methodMetricsMap.put(method, new MethodMetrics(method.getName(), endPointTag, registry));
+      }
+    }
+
+    private MethodMetrics of(Method method) {
+      MethodMetrics methodMetrics = methodMetricsMap.get(method);
+      return methodMetrics != null ? methodMetrics
+          : new MethodMetrics(method.getName(), endPointTag, registry);
+    }
+  }
+
+  private static class MethodMetrics {
+    private final Histogram latency;
+    private final LongAdder failureCount;
+
+    private MethodMetrics(String methodName, String endPointTag, MetricsRegistry registry) {
+      this.latency = registry.histogram("dih.rpc." + methodName + ".us" + endPointTag);
+      this.failureCount = registry.counter("dih.rpc." + methodName + ".failure" + endPointTag);
+    }
+  }
+}
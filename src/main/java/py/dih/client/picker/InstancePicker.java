@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.picker;
+
+import py.instance.Instance;
+
+/**
+ * A strategy picking one instance among the candidates of a request.
+ *
+ * <p>The candidates array of a service is computed once per snapshot of the instance store, and
+ * the same array is passed in until the snapshot changes. Implementations must not modify it, and
+ * are called concurrently.
+ */
+public interface InstancePicker {
+  /**
+   * Pick one of the candidates.
+   *
+   * @param candidates at least one instance
+   */
+  Instance pick(Instance[] candidates);
+}
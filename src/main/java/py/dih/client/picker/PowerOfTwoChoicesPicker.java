@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.picker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import py.instance.Instance;
+import py.instance.InstanceId;
+
+/**
+ * Pick the less loaded of two random candidates, by the load or latency the caller reports.
+ *
+ * <p>Report either the load, e.g. the requests in flight, or the latency of each request which is
+ * averaged exponentially, but not both to the same picker. An instance nothing is reported for
+ * counts as idle, so that new instances are tried.
+ */
+public class PowerOfTwoChoicesPicker implements InstancePicker {
+  private static final int LATENCY_SMOOTHING_SHIFT = 3; // weight of a new latency is 1/8
+
+  private final ConcurrentHashMap<InstanceId, AtomicLong> scores = new ConcurrentHashMap<>();
+
+  @Override
+  public Instance pick(Instance[] candidates) {
+    if (candidates.length == 1) {
+      return candidates[0];
+    }
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(candidates.length);
+    int second = random.nextInt(candidates.length - 1);
+    if (second >= first) {
+      second++;
+    }
+    return scoreOf(candidates[second]) < scoreOf(candidates[first]) ? candidates[second]
+        : candidates[first];
+  }
+
+  /**
+   * Report the current load of the instance.
+   */
+  public void reportLoad(InstanceId instanceId, long load) {
+    scoreHolder(instanceId).set(load);
+  }
+
+  /**
+   * Report the latency of a request to the instance.
+   */
+  public void reportLatency(InstanceId instanceId, long latency) {
+    scoreHolder(instanceId).accumulateAndGet(latency,
+        (average, sample) -> average == 0 ? sample
+            : average + ((sample - average) >> LATENCY_SMOOTHING_SHIFT));
+  }
+
+  /**
+   * Forget what was reported for the instance, e.g. after it is removed.
+   */
+  public void forget(InstanceId instanceId) {
+    scores.remove(instanceId);
+  }
+
+  private long scoreOf(Instance instance) {
+    AtomicLong score = scores.get(instance.getId());
+    return score == null ? 0 : score.get();
+  }
+
+  private AtomicLong scoreHolder(InstanceId instanceId) {
+    AtomicLong score = scores.get(instanceId);
+    return score != null ? score : scores.computeIfAbsent(instanceId, key -> new AtomicLong());
+  }
+}
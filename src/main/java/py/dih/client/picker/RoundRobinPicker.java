@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.picker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import py.instance.Instance;
+
+/**
+ * Pick the candidates in turn, lock free.
+ */
+public class RoundRobinPicker implements InstancePicker {
+  private final AtomicInteger next = new AtomicInteger();
+
+  @Override
+  public Instance pick(Instance[] candidates) {
+    int index = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.length;
+    return candidates[index];
+  }
+}
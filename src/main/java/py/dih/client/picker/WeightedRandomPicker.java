@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.picker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToIntFunction;
+import py.instance.Instance;
+
+/**
+ * Pick the candidates at random in proportion to their weights, in constant time by the alias
+ * method.
+ *
+ * <p>The alias tables of the last candidates are kept and rebuilt when the candidates change, so
+ * use one picker per service name. Instances of a non-positive weight are never picked, unless
+ * none has a positive weight in which case the candidates are picked uniformly.
+ */
+public class WeightedRandomPicker implements InstancePicker {
+  private final ToIntFunction<Instance> weigher;
+  private volatile AliasTable aliasTable;
+
+  /**
+   * Create a picker.
+   *
+   * @param weigher the weight of an instance, it is only asked when the candidates change
+   */
+  public WeightedRandomPicker(ToIntFunction<Instance> weigher) {
+    this.weigher = weigher;
+  }
+
+  @Override
+  public Instance pick(Instance[] candidates) {
+    AliasTable table = aliasTable;
+    if (table == null || table.candidates != candidates) {
+      table = new AliasTable(candidates, weigher);
+      aliasTable = table;
+    }
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int column = random.nextInt(candidates.length);
+    return random.nextDouble() < table.probabilities[column] ? candidates[column]
+        : candidates[table.aliases[column]];
+  }
+
+  private static class AliasTable {
+    private final Instance[] candidates;
+    private final double[] probabilities;
+    private final int[] aliases;
+
+    private AliasTable(Instance[] candidates, ToIntFunction<Instance> weigher) {
+      int count = candidates.length;
+      this.candidates = candidates;
+      this.probabilities = new double[count];
+      this.aliases = new int[count];
+
+      long totalWeight = 0;
+      int[] weights = new int[count];
+      for (int i = 0; i < count; i++) {
+        weights[i] = Math.max(0, weigher.applyAsInt(candidates[i]));
+        totalWeight += weights[i];
+      }
+
+      double[] scaled = new double[count];
+      Deque<Integer> small = new ArrayDeque<>();
+      Deque<Integer> large = new ArrayDeque<>();
+      for (int i = 0; i < count; i++) {
+        scaled[i] = totalWeight == 0 ? 1 : (double) weights[i] * count / totalWeight;
+        if (scaled[i] < 1) {
+          small.push(i);
+        } else {
+          large.push(i);
+        }
+      }
+
+      while (!small.isEmpty() && !large.isEmpty()) {
+        int less = small.pop();
+        int more = large.pop();
+        probabilities[less] = scaled[less];
+        aliases[less] = more;
+        scaled[more] = scaled[more] + scaled[less] - 1;
+        if (scaled[more] < 1) {
+          small.push(more);
+        } else {
+          large.push(more);
+        }
+      }
+      // what remains is 1 but for rounding errors
+      while (!large.isEmpty()) {
+        int index = large.pop();
+        probabilities[index] = 1;
+        aliases[index] = index;
+      }
+      while (!small.isEmpty()) {
+        int index = small.pop();
+        probabilities[index] = 1;
+        aliases[index] = index;
+      }
+    }
+  }
+}
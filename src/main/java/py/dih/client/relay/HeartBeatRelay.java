@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.relay;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.RequestIdBuilder;
+import py.common.struct.EndPoint;
+import py.dih.client.DihClientFactory;
+import py.dih.client.DihServiceBlockingClientWrapper;
+import py.dih.client.metrics.MetricsRegistry;
+import py.thrift.distributedinstancehub.service.DistributedInstanceHub;
+import py.thrift.distributedinstancehub.service.HeartBeatRequest;
+import py.thrift.distributedinstancehub.service.HeartBeatResponse;
+import py.thrift.distributedinstancehub.service.InstanceThrift;
+
+/**
+ * A host local relay of heartbeats to the local DIH, so that the services on a host do not each
+ * keep a connection to DIH and call it every second.
+ *
+ * <p>The relay serves the heartBeat and ping calls of DIH on the loopback address, and a
+ * {@link py.dih.client.worker.HeartBeatWorker} heartbeats with it when its relay endpoint is set.
+ * The heartbeats received are coalesced by instance, only the latest one of each instance is kept,
+ * and the kept heartbeats are sent to DIH back to back by one thread, over one connection, every
+ * flush interval.
+ *
+ * <p>A heartbeat is acknowledged when it is queued. If the last flush failed to reach DIH the relay
+ * refuses heartbeats without queueing them, so that the workers fall back to heartbeat with DIH
+ * directly, and pings DIH on each flush until it is back. The heartbeats acknowledged but not sent
+ * are kept, each replaced by any newer one of its instance, and sent by a later flush, unless they
+ * are older than the max pending age: DIH would have timed out such a heartbeat already, and the
+ * worker has heartbeated with DIH directly since.
+ *
+ * <p>The transport and protocol of the relay must match the ones of the client factory of the
+ * services.
+ */
+public class HeartBeatRelay {
+  private static final Logger logger = LoggerFactory.getLogger(HeartBeatRelay.class);
+
+  private final ConcurrentHashMap<Long, PendingHeartBeat> pendingHeartBeats =
+      new ConcurrentHashMap<>();
+  private final LongAdder receivedCount = MetricsRegistry.getDefault()
+      .counter("dih.relay.received");
+  private final LongAdder sentCount = MetricsRegistry.getDefault().counter("dih.relay.sent");
+  private final LongAdder failedFlushCount = MetricsRegistry.getDefault()
+      .counter("dih.relay.flush.failure");
+  private final LongAdder droppedCount = MetricsRegistry.getDefault().counter("dih.relay.dropped");
+
+  private DihClientFactory dihClientFactory;
+  private EndPoint dihEndPoint;
+  private int port = 0;
+  private int flushInterval = 500; // ms
+  private long requestTimeout = 5000;
+  private long maxPendingAge = 10000; // ms, about the heartbeat timeout of DIH
+  private boolean framed = true;
+  private boolean compact = true;
+  private int maxWorkerThreads = 64;
+
+  private volatile boolean isDihReachable = true;
+  private TServer server;
+  private ScheduledExecutorService flushExecutor;
+  private EndPoint endPoint;
+
+  /**
+   * Start serving on the loopback address and flushing to DIH.
+   */
+  public void start() throws Exception {
+    ServerSocket serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    endPoint = new EndPoint(serverSocket.getInetAddress().getHostAddress(),
+        serverSocket.getLocalPort());
+
+    TProtocolFactory protocolFactory = compact ? new TCompactProtocol.Factory()
+        : new TBinaryProtocol.Factory();
+    TThreadPoolServer.Args args = new TThreadPoolServer.Args(new TServerSocket(serverSocket))
+        .processor(new DistributedInstanceHub.Processor<>(newHandler()))
+        .protocolFactory(protocolFactory)
+        .minWorkerThreads(1)
+        .maxWorkerThreads(maxWorkerThreads);
+    if (framed) {
+      args.transportFactory(new TFramedTransport.Factory());
+    }
+    server = new TThreadPoolServer(args);
+
+    flushExecutor = Executors.newScheduledThreadPool(2,
+        new ThreadFactoryBuilder().setNameFormat("heartbeat-relay-%d").setDaemon(true).build());
+    flushExecutor.execute(server::serve);
+    flushExecutor.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval,
+        TimeUnit.MILLISECONDS);
+    logger.warn("heartbeat relay to {} is serving at {}", dihEndPoint, endPoint);
+  }
+
+  public void stop() {
+    if (server != null) {
+      server.stop();
+    }
+    if (flushExecutor != null) {
+      flushExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Send the pending heartbeats to DIH, those not sent are kept unless replaced by newer ones or
+   * older than the max pending age. Ping DIH if none is pending while it is not reachable.
+   */
+  void flush() {
+    long now = System.currentTimeMillis();
+    List<PendingHeartBeat> heartBeats = new ArrayList<>();
+    for (PendingHeartBeat pending : pendingHeartBeats.values()) {
+      if (now - pending.receivedTime > maxPendingAge) {
+        if (pendingHeartBeats.remove(pending.instance.getInstanceId(), pending)) {
+          droppedCount.increment();
+        }
+      } else {
+        heartBeats.add(pending);
+      }
+    }
+    if (heartBeats.isEmpty() && isDihReachable) {
+      return;
+    }
+
+    DihServiceBlockingClientWrapper client;
+    try {
+      client = dihClientFactory.build(dihEndPoint, requestTimeout, "heartBeat");
+      if (heartBeats.isEmpty()) {
+        client.ping();
+      }
+    } catch (Exception e) {
+      onFlushFailure(e);
+      return;
+    }
+
+    for (PendingHeartBeat pending : heartBeats) {
+      HeartBeatRequest request = new HeartBeatRequest();
+      request.setRequestId(RequestIdBuilder.get());
+      request.setInstance(pending.instance);
+      try {
+        client.heartBeat(request);
+      } catch (TException e) {
+        onFlushFailure(e);
+        return;
+      }
+      // a newer heartbeat which came during the flush is kept for the next one
+      pendingHeartBeats.remove(pending.instance.getInstanceId(), pending);
+      sentCount.increment();
+    }
+    isDihReachable = true;
+  }
+
+  private void onFlushFailure(Exception e) {
+    failedFlushCount.increment();
+    if (isDihReachable) {
+      logger.warn("can not relay heartbeats to {}, refuse heartbeats until it is back",
+          dihEndPoint, e);
+    }
+    isDihReachable = false;
+  }
+
+  private DistributedInstanceHub.Iface newHandler() {
+    InvocationHandler handler = (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "ping":
+          return null;
+        case "heartBeat":
+          return heartBeat((HeartBeatRequest) args[0]);
+        case "toString":
+          return "HeartBeatRelay";
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          throw new TException("not supported by the heartbeat relay: " + method.getName());
+      }
+    };
+    return (DistributedInstanceHub.Iface) Proxy.newProxyInstance(
+        DistributedInstanceHub.Iface.class.getClassLoader(),
+        new Class<?>[]{DistributedInstanceHub.Iface.class}, handler);
+  }
+
+  private HeartBeatResponse heartBeat(HeartBeatRequest request) throws TException {
+    if (!isDihReachable) {
+      // the worker heartbeats with DIH directly, the relay pings DIH on the next flush
+      throw new TException("DIH " + dihEndPoint + " is not reachable from the relay");
+    }
+    receivedCount.increment();
+    pendingHeartBeats.put(request.getInstance().getInstanceId(),
+        new PendingHeartBeat(request.getInstance(), System.currentTimeMillis()));
+    HeartBeatResponse response = new HeartBeatResponse();
+    response.setRequestId(request.getRequestId());
+    return response;
+  }
+
+  public EndPoint getEndPoint() {
+    return endPoint;
+  }
+
+  public void setDihClientFactory(DihClientFactory dihClientFactory) {
+    this.dihClientFactory = dihClientFactory;
+  }
+
+  public void setDihEndPoint(EndPoint dihEndPoint) {
+    this.dihEndPoint = dihEndPoint;
+  }
+
+  /**
+   * Set the port to serve on, an ephemeral port if 0.
+   */
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  public void setFlushInterval(int flushInterval) {
+    this.flushInterval = flushInterval;
+  }
+
+  public void setRequestTimeout(long requestTimeout) {
+    this.requestTimeout = requestTimeout;
+  }
+
+  /**
+   * Drop the heartbeats pending for longer than this, it should be about the heartbeat timeout of
+   * DIH.
+   */
+  public void setMaxPendingAge(long maxPendingAge) {
+    this.maxPendingAge = maxPendingAge;
+  }
+
+  public void setFramed(boolean framed) {
+    this.framed = framed;
+  }
+
+  public void setCompact(boolean compact) {
+    this.compact = compact;
+  }
+
+  public void setMaxWorkerThreads(int maxWorkerThreads) {
+    this.maxWorkerThreads = maxWorkerThreads;
+  }
+
+  private static class PendingHeartBeat {
+    private final InstanceThrift instance;
+    private final long receivedTime;
+
+    private PendingHeartBeat(InstanceThrift instance, long receivedTime) {
+      this.instance = instance;
+      this.receivedTime = receivedTime;
+    }
+  }
+}
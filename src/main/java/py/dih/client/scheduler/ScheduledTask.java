@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.scheduler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.periodic.Worker;
+import py.periodic.WorkerFactory;
+
+/**
+ * A periodic task registered to {@link SharedScheduler}.
+ *
+ * <p>The task runs at a fixed rate anchored at the time it was registered, so that it does not
+ * drift. A firing is skipped if the previous run of the same task has not finished yet.
+ */
+public class ScheduledTask {
+  private static final Logger logger = LoggerFactory.getLogger(ScheduledTask.class);
+
+  private final String name;
+  private final TaskPriority priority;
+  private final long period;
+  private final WorkerFactory workerFactory;
+  private final SharedScheduler scheduler;
+  private final long startTime;
+  private final AtomicBoolean running = new AtomicBoolean(false);
+  private final AtomicLong skippedCount = new AtomicLong(0);
+  private volatile boolean cancelled = false;
+  private volatile Timeout timeout;
+  private long firedCount = 0;
+
+  ScheduledTask(String name, TaskPriority priority, long period, WorkerFactory workerFactory,
+      SharedScheduler scheduler) {
+    this.name = name;
+    this.priority = priority;
+    this.period = TimeUnit.MILLISECONDS.toNanos(period);
+    this.workerFactory = workerFactory;
+    this.scheduler = scheduler;
+    this.startTime = System.nanoTime();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public TaskPriority getPriority() {
+    return priority;
+  }
+
+  /**
+   * Get how many times the task was not run because its previous run was still going on.
+   */
+  public long getSkippedCount() {
+    return skippedCount.get();
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Stop scheduling the task, a run already going on is not interrupted.
+   */
+  public void cancel() {
+    cancelled = true;
+    Timeout current = timeout;
+    if (current != null) {
+      current.cancel();
+    }
+  }
+
+  void scheduleNext() {
+    if (cancelled) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    long nextFireTime = startTime + firedCount * period;
+    if (nextFireTime < now) {
+      // skip the periods we have missed instead of firing several times in a row
+      long missed = (now - nextFireTime) / period;
+      firedCount += missed;
+      nextFireTime += missed * period;
+    }
+    firedCount++;
+    timeout = scheduler.getTimer().newTimeout(new TimerTask() {
+      @Override
+      public void run(Timeout timeout) throws Exception {
+        fire();
+      }
+    }, Math.max(0, nextFireTime - now), TimeUnit.NANOSECONDS);
+  }
+
+  private void fire() {
+    if (cancelled) {
+      return;
+    }
+
+    if (running.compareAndSet(false, true)) {
+      try {
+        scheduler.dispatch(this);
+      } catch (RuntimeException e) {
+        running.set(false);
+        logger.warn("can not dispatch task {}", name, e);
+      }
+    } else {
+      skippedCount.incrementAndGet();
+      logger.debug("task {} is still running, skip this round", name);
+    }
+    scheduleNext();
+  }
+
+  void run() {
+    try {
+      Worker worker = workerFactory.createWorker();
+      worker.doWork();
+    } catch (Throwable t) {
+      logger.warn("caught an exception when running task {}", name, t);
+    } finally {
+      running.set(false);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ScheduledTask [name=" + name + ", priority=" + priority + ", period="
+        + TimeUnit.NANOSECONDS.toMillis(period) + "ms]";
+  }
+}
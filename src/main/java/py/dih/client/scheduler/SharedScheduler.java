@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.scheduler;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.Validate;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.periodic.WorkerFactory;
+
+/**
+ * A scheduler shared by all periodic workers of the DIH client in a process, such as the health
+ * checker, the instance store refresher and the DIH client builder.
+ *
+ * <p>A hashed timer wheel fires the tasks and a small worker pool runs them, so the number of
+ * threads stays the same no matter how many tasks are registered. Due tasks wait in a priority
+ * queue. Heartbeat tasks have their own lane, so a slow refresh never delays a heartbeat. The
+ * lane is a small pool rather than one thread, so a heartbeat blocked on an unreachable DIH does
+ * not hold back the heartbeats of the other services.
+ */
+public class SharedScheduler {
+  public static final int DEFAULT_WORKER_COUNT = 2;
+  public static final int DEFAULT_HEARTBEAT_THREAD_COUNT = 4;
+  public static final long DEFAULT_TICK_DURATION = 50; // ms
+  private static final int TICKS_PER_WHEEL = 512;
+  private static final Logger logger = LoggerFactory.getLogger(SharedScheduler.class);
+
+  private final HashedWheelTimer timer;
+  private final ExecutorService heartBeatExecutor;
+  private final ThreadPoolExecutor workerExecutor;
+  private final AtomicLong sequence = new AtomicLong(0);
+
+  public SharedScheduler() {
+    this(DEFAULT_WORKER_COUNT, DEFAULT_TICK_DURATION);
+  }
+
+  public SharedScheduler(int workerCount, long tickDuration) {
+    this(workerCount, DEFAULT_HEARTBEAT_THREAD_COUNT, tickDuration);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param workerCount          number of threads running tasks other than heartbeat
+   * @param heartBeatThreadCount number of threads sending heartbeats
+   * @param tickDuration         precision of the timer wheel in milliseconds
+   */
+  public SharedScheduler(int workerCount, int heartBeatThreadCount, long tickDuration) {
+    Validate.isTrue(workerCount > 0, "worker count must be positive");
+    Validate.isTrue(heartBeatThreadCount > 0, "heartbeat thread count must be positive");
+    this.timer = new HashedWheelTimer(
+        new ThreadFactoryBuilder().setNameFormat("dih-scheduler-timer").setDaemon(true).build(),
+        tickDuration, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    this.heartBeatExecutor = new ThreadPoolExecutor(heartBeatThreadCount, heartBeatThreadCount, 0L,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("dih-scheduler-heartbeat-%d").setDaemon(true)
+            .build());
+    this.workerExecutor = new ThreadPoolExecutor(workerCount, workerCount, 0L,
+        TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("dih-scheduler-worker-%d").setDaemon(true)
+            .build());
+  }
+
+  public static SharedScheduler getDefault() {
+    return LazyHolder.defaultScheduler;
+  }
+
+  /**
+   * Register a periodic task, the first run happens one period later.
+   *
+   * @param name          name of the task, used in logs
+   * @param priority      priority of the task
+   * @param period        period in milliseconds
+   * @param workerFactory creates the worker for each run
+   * @return the handle to cancel the task
+   */
+  public ScheduledTask schedule(String name, TaskPriority priority, long period,
+      WorkerFactory workerFactory) {
+    Validate.isTrue(period > 0, "period must be positive");
+    ScheduledTask task = new ScheduledTask(name, priority, period, workerFactory, this);
+    task.scheduleNext();
+    logger.info("registered {}", task);
+    return task;
+  }
+
+  /**
+   * Run a heartbeat send on the heartbeat lane, for a task that sends its heartbeat after some
+   * slower work, such as the health checker after probing the service.
+   */
+  public void executeHeartBeat(Runnable heartBeat) {
+    heartBeatExecutor.execute(heartBeat);
+  }
+
+  /**
+   * Stop the scheduler, all registered tasks are cancelled.
+   */
+  public void stop() {
+    timer.stop();
+    heartBeatExecutor.shutdownNow();
+    workerExecutor.shutdownNow();
+  }
+
+  HashedWheelTimer getTimer() {
+    return timer;
+  }
+
+  void dispatch(ScheduledTask task) {
+    if (task.getPriority() == TaskPriority.HEARTBEAT) {
+      heartBeatExecutor.execute(task::run);
+    } else {
+      // must use execute() rather than submit() to keep the runnable comparable
+      workerExecutor.execute(new PrioritizedRun(task, sequence.getAndIncrement()));
+    }
+  }
+
+  private static class PrioritizedRun implements Runnable, Comparable<PrioritizedRun> {
+    private final ScheduledTask task;
+    private final long sequence;
+
+    private PrioritizedRun(ScheduledTask task, long sequence) {
+      this.task = task;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+
+    @Override
+    public int compareTo(PrioritizedRun other) {
+      int result = task.getPriority().compareTo(other.task.getPriority());
+      return result != 0 ? result : Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private static class LazyHolder {
+    private static final SharedScheduler defaultScheduler = new SharedScheduler();
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.scheduler;
+
+/**
+ * Priority of a task registered to {@link SharedScheduler}, a task with a smaller ordinal runs
+ * first when several tasks are due at the same time.
+ */
+public enum TaskPriority {
+  /**
+   * Tasks sending heartbeat to DIH, they run on a dedicated lane and never wait for other tasks.
+   * A task doing anything slower than sending the heartbeat, such as probing the service, must
+   * not use this priority but hand only its send to {@link SharedScheduler#executeHeartBeat}.
+   */
+  HEARTBEAT,
+
+  HIGH,
+
+  NORMAL,
+
+  LOW
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.timeout;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.Validate;
+import org.apache.thrift.transport.TTransportException;
+import py.common.struct.EndPoint;
+import py.dih.client.metrics.Histogram;
+
+/**
+ * Timeouts of the calls by endpoint and operation, derived from the latency observed recently
+ * instead of being fixed, so that a hung peer costs a few times its usual latency rather than the
+ * full request timeout.
+ *
+ * <p>The latency of the successful calls is collected in windows. When a window is over, or
+ * enough calls are collected before the first timeout is known, the timeout becomes the 99th
+ * percentile of the window times the multiplier, bounded by the floor and the ceiling. Each call
+ * timing out in a row doubles the timeout until a call succeeds, so that a peer which really got
+ * slower, e.g. a larger cluster to return, is not timed out forever.
+ *
+ * <p>The timeout never exceeds the request timeout of the call, which is also used until enough
+ * calls are observed.
+ */
+public class AdaptiveTimeout {
+  public static final long DEFAULT_FLOOR_MS = 500;
+  public static final long DEFAULT_CEILING_MS = 20000;
+  public static final double DEFAULT_MULTIPLIER = 3;
+  public static final int DEFAULT_MIN_SAMPLES = 20;
+  public static final long DEFAULT_WINDOW_MS = 60000;
+  private static final int MAX_BACKOFF_SHIFT = 6;
+
+  private final long floorMs;
+  private final long ceilingMs;
+  private final double multiplier;
+  private final int minSamples;
+  private final long windowMs;
+  private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+
+  public AdaptiveTimeout() {
+    this(DEFAULT_FLOOR_MS, DEFAULT_CEILING_MS, DEFAULT_MULTIPLIER, DEFAULT_MIN_SAMPLES,
+        DEFAULT_WINDOW_MS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param floorMs    the shortest timeout
+   * @param ceilingMs  the longest timeout
+   * @param multiplier how many times the 99th percentile of the latency the timeout is
+   * @param minSamples how many calls a window needs to derive the timeout from
+   * @param windowMs   how long the latency is collected before the timeout is derived again
+   */
+  public AdaptiveTimeout(long floorMs, long ceilingMs, double multiplier, int minSamples,
+      long windowMs) {
+    Validate.isTrue(floorMs > 0, "floor must be positive");
+    Validate.isTrue(ceilingMs >= floorMs, "ceiling must not be less than floor");
+    Validate.isTrue(multiplier >= 1, "multiplier must not be less than 1");
+    Validate.isTrue(minSamples > 0, "min samples must be positive");
+    Validate.isTrue(windowMs > 0, "window must be positive");
+    this.floorMs = floorMs;
+    this.ceilingMs = ceilingMs;
+    this.multiplier = multiplier;
+    this.minSamples = minSamples;
+    this.windowMs = windowMs;
+  }
+
+  /**
+   * Get the timeout of the next call of the operation on the endpoint.
+   *
+   * @param requestTimeoutMs the configured timeout of the call, which bounds the result
+   */
+  public long timeoutOf(EndPoint endPoint, String operation, long requestTimeoutMs) {
+    Window window = windows.get(keyOf(endPoint, operation));
+    long timeout = window == null ? -1 : window.timeoutMs;
+    if (timeout <= 0) {
+      return requestTimeoutMs;
+    }
+    timeout = Math.min(ceilingMs, timeout << Math.min(MAX_BACKOFF_SHIFT, window.timeoutsInRow));
+    return requestTimeoutMs > 0 ? Math.min(requestTimeoutMs, timeout) : timeout;
+  }
+
+  public void recordSuccess(EndPoint endPoint, String operation, long latencyMicros) {
+    windowOf(endPoint, operation).record(latencyMicros);
+  }
+
+  public void recordTimeout(EndPoint endPoint, String operation) {
+    windowOf(endPoint, operation).timeoutsInRow++;
+  }
+
+  /**
+   * Forget what is observed of the endpoint, e.g. when it leaves the cluster.
+   */
+  public void forget(EndPoint endPoint) {
+    String prefix = endPoint + "#";
+    windows.keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  /**
+   * Wrap the client of the endpoint to record its calls by their method names.
+   */
+  public <T> T wrap(Class<T> clazz, T target, EndPoint endPoint) {
+    return wrap(clazz, target, endPoint, null);
+  }
+
+  /**
+   * Wrap the client of the endpoint to record its calls as the given operation, so that calls of
+   * one method made for different purposes, e.g. a full refresh and a probe, do not share a window.
+   * The calls are recorded by their method names if the operation is null.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T wrap(Class<T> clazz, T target, EndPoint endPoint, String operation) {
+    return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class<?>[]{clazz},
+        new RecordingHandler<>(target, endPoint, operation));
+  }
+
+  public long getFloorMs() {
+    return floorMs;
+  }
+
+  public long getCeilingMs() {
+    return ceilingMs;
+  }
+
+  private Window windowOf(EndPoint endPoint, String operation) {
+    return windows.computeIfAbsent(keyOf(endPoint, operation), key -> new Window());
+  }
+
+  private static String keyOf(EndPoint endPoint, String operation) {
+    return endPoint + "#" + operation;
+  }
+
+  private static boolean isTimeout(Throwable t) {
+    return t instanceof TTransportException && t.getCause() instanceof SocketTimeoutException;
+  }
+
+  private class Window {
+    private volatile Histogram latency = new Histogram();
+    private volatile long startTime = System.currentTimeMillis();
+    private volatile long timeoutMs = -1;
+    // only a hint, a lost update costs a doubling
+    private volatile int timeoutsInRow = 0;
+
+    private void record(long latencyMicros) {
+      latency.record(latencyMicros);
+      timeoutsInRow = 0;
+      long now = System.currentTimeMillis();
+      if (now - startTime >= windowMs || timeoutMs <= 0 && latency.getCount() >= minSamples) {
+        roll(now);
+      }
+    }
+
+    private synchronized void roll(long now) {
+      if (now - startTime < windowMs && (timeoutMs > 0 || latency.getCount() < minSamples)) {
+        return;
+      }
+      Histogram full = latency;
+      latency = new Histogram();
+      startTime = now;
+      if (full.getCount() < minSamples) {
+        // too few calls to tell, keep the timeout derived before
+        return;
+      }
+      long p99Ms = TimeUnit.MICROSECONDS.toMillis(full.snapshot().getP99()) + 1;
+      timeoutMs = Math.max(floorMs, Math.min(ceilingMs, (long) (p99Ms * multiplier)));
+    }
+  }
+
+  private class RecordingHandler<T> implements InvocationHandler {
+    private final T target;
+    private final EndPoint endPoint;
+    private final String operation;
+
+    private RecordingHandler(T target, EndPoint endPoint, String operation) {
+      this.target = target;
+      this.endPoint = endPoint;
+      this.operation = operation;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return method.invoke(target, args);
+      }
+
+      String key = operation != null ? operation : method.getName();
+      long startTime = System.nanoTime();
+      try {
+        Object result = method.invoke(target, args);
+        recordSuccess(endPoint, key,
+            TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+        return result;
+      } catch (InvocationTargetException e) {
+        if (isTimeout(e.getTargetException())) {
+          recordTimeout(endPoint, key);
+        }
+        throw e.getTargetException();
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.timeout;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deadline of the work done by the current thread, so that the nested calls, e.g. the
+ * failovers of a refresh, share the remaining time of their caller instead of each taking a full
+ * timeout.
+ *
+ * <p>A deadline is set for a scope and the previous one is restored when the scope is closed. A
+ * nested scope can only shorten the deadline of the outer one:
+ *
+ * <pre>
+ * try (Deadline.Scope scope = Deadline.within(3000)) {
+ *   client = dihClientFactory.build(endPoint, requestTimeout, "getInstances");
+ *   ...
+ * }
+ * </pre>
+ */
+public final class Deadline {
+  private static final ThreadLocal<Long> current = new ThreadLocal<>();
+
+  private Deadline() {
+  }
+
+  /**
+   * Set the deadline of the current thread to the given time from now, or keep the deadline if it
+   * is earlier. No deadline is set if the timeout is not positive.
+   */
+  public static Scope within(long timeoutMs) {
+    Long previous = current.get();
+    if (timeoutMs > 0) {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      if (previous == null || deadline - previous < 0) {
+        current.set(deadline);
+      }
+    }
+    return new Scope(previous);
+  }
+
+  public static boolean isSet() {
+    return current.get() != null;
+  }
+
+  /**
+   * Get the milliseconds left before the deadline, {@link Long#MAX_VALUE} if there is no deadline
+   * and 0 if it has passed.
+   */
+  public static long remainingMs() {
+    Long deadline = current.get();
+    if (deadline == null) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+  }
+
+  public static boolean isExpired() {
+    Long deadline = current.get();
+    return deadline != null && deadline - System.nanoTime() <= 0;
+  }
+
+  /**
+   * Shorten the timeout of a call to the time left, at least 1 ms so that an expired deadline does
+   * not turn into an infinite timeout. The timeout is returned as is without a deadline.
+   */
+  public static long bound(long timeoutMs) {
+    if (!isSet()) {
+      return timeoutMs;
+    }
+    long remaining = Math.max(1, remainingMs());
+    return timeoutMs > 0 ? Math.min(timeoutMs, remaining) : remaining;
+  }
+
+  /**
+   * The scope of a deadline, closing it restores the deadline of the outer scope.
+   */
+  public static final class Scope implements AutoCloseable {
+    private final Long previous;
+
+    private Scope(Long previous) {
+      this.previous = previous;
+    }
+
+    @Override
+    public void close() {
+      if (previous == null) {
+        current.remove();
+      } else {
+        current.set(previous);
+      }
+    }
+  }
+}
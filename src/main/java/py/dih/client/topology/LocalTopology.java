@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.topology;
+
+import java.util.Objects;
+import py.app.context.AppContext;
+import py.instance.Group;
+import py.instance.Instance;
+import py.instance.Location;
+
+/**
+ * Where the local service is, to tell the {@link Proximity} of other instances.
+ *
+ * <p>A rack is only the same if it is in the same DC. An instance without a location can only be
+ * in the same group.
+ */
+public class LocalTopology {
+  private final Group group;
+  private final String dc;
+  private final String rack;
+
+  public LocalTopology(Group group, Location location) {
+    this.group = group;
+    this.dc = location == null ? null : location.getDc();
+    this.rack = location == null ? null : location.getRack();
+  }
+
+  public static LocalTopology of(AppContext appContext) {
+    return new LocalTopology(appContext.getGroup(), appContext.getLocation());
+  }
+
+  public Proximity proximityOf(Instance instance) {
+    if (group != null && group.equals(instance.getGroup())) {
+      return Proximity.SAME_GROUP;
+    }
+
+    Location location = instance.getLocation();
+    if (dc == null || location == null || !dc.equals(location.getDc())) {
+      return Proximity.REMOTE;
+    }
+    return rack != null && rack.equals(location.getRack()) ? Proximity.SAME_RACK
+        : Proximity.SAME_DC;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    LocalTopology that = (LocalTopology) o;
+    return Objects.equals(group, that.group) && Objects.equals(dc, that.dc)
+        && Objects.equals(rack, that.rack);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(group, dc, rack);
+  }
+
+  @Override
+  public String toString() {
+    return "LocalTopology{group=" + group + ", dc=" + dc + ", rack=" + rack + '}';
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.transport;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.lang3.Validate;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.struct.EndPoint;
+import py.dih.client.metrics.MetricsRegistry;
+import py.thrift.distributedinstancehub.service.DistributedInstanceHub;
+
+/**
+ * Connections to DIH built as a {@link TransportProfile} describes, kept open between calls.
+ *
+ * <p>The built clients are thread safe and cheap: each call borrows an idle connection of the
+ * endpoint, or opens one, and gives it back when done. A connection is closed instead if the call
+ * failed in the transport or the protocol, if it was idle for too long, or if the endpoint
+ * already has enough idle ones.
+ */
+public class DihClientPool {
+  public static final int DEFAULT_MAX_IDLE_PER_END_POINT = 8;
+  public static final long DEFAULT_MAX_IDLE_TIME_MS = 60000;
+  private static final Logger logger = LoggerFactory.getLogger(DihClientPool.class);
+  private static final LongAdder connectCount = MetricsRegistry.getDefault()
+      .counter("dih.pool.connect");
+
+  private final TransportProfile profile;
+  private final int connectionTimeoutMs;
+  private final int maxIdlePerEndPoint;
+  private final long maxIdleTimeMs;
+  private final ConcurrentHashMap<EndPoint, LinkedBlockingDeque<Connection>> idleConnections =
+      new ConcurrentHashMap<>();
+  private volatile boolean isClosed = false;
+
+  public DihClientPool(TransportProfile profile, int connectionTimeoutMs) {
+    this(profile, connectionTimeoutMs, DEFAULT_MAX_IDLE_PER_END_POINT, DEFAULT_MAX_IDLE_TIME_MS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param profile             how the connections are built
+   * @param connectionTimeoutMs timeout of connecting, the timeout of the call if not positive
+   * @param maxIdlePerEndPoint  how many idle connections are kept for an endpoint
+   * @param maxIdleTimeMs       how long a connection is kept idle
+   */
+  public DihClientPool(TransportProfile profile, int connectionTimeoutMs, int maxIdlePerEndPoint,
+      long maxIdleTimeMs) {
+    this.profile = profile;
+    this.connectionTimeoutMs = connectionTimeoutMs;
+    this.maxIdlePerEndPoint = maxIdlePerEndPoint;
+    this.maxIdleTimeMs = maxIdleTimeMs;
+  }
+
+  /**
+   * Get a client of the endpoint whose calls time out after the given time.
+   */
+  public DistributedInstanceHub.Iface build(EndPoint endPoint, long timeoutMs) {
+    // a socket timeout of 0 waits forever
+    Validate.isTrue(timeoutMs > 0, "timeout must be positive");
+    return (DistributedInstanceHub.Iface) Proxy.newProxyInstance(
+        DistributedInstanceHub.Iface.class.getClassLoader(),
+        new Class<?>[]{DistributedInstanceHub.Iface.class},
+        new PooledHandler(endPoint, toSocketTimeout(timeoutMs)));
+  }
+
+  public TransportProfile getProfile() {
+    return profile;
+  }
+
+  public int getIdleCount(EndPoint endPoint) {
+    LinkedBlockingDeque<Connection> connections = idleConnections.get(endPoint);
+    return connections == null ? 0 : connections.size();
+  }
+
+  /**
+   * Close the idle connections, the connections in use are closed when given back.
+   */
+  public void close() {
+    isClosed = true;
+    for (LinkedBlockingDeque<Connection> connections : idleConnections.values()) {
+      Connection connection = connections.pollFirst();
+      while (connection != null) {
+        connection.close();
+        connection = connections.pollFirst();
+      }
+    }
+    idleConnections.clear();
+  }
+
+  private Connection borrow(EndPoint endPoint, int socketTimeout) throws TTransportException {
+    LinkedBlockingDeque<Connection> connections = idleConnections.get(endPoint);
+    if (connections != null) {
+      long now = System.currentTimeMillis();
+      // the most recently used connection is the most likely to be still open
+      Connection connection = connections.pollFirst();
+      while (connection != null) {
+        if (now - connection.lastUsedTime < maxIdleTimeMs) {
+          try {
+            connection.socket.setSoTimeout(socketTimeout);
+            return connection;
+          } catch (IOException e) {
+            logger.debug("can not reuse the connection to {}", endPoint, e);
+          }
+        }
+        connection.close();
+        connection = connections.pollFirst();
+      }
+    }
+    return connect(endPoint, socketTimeout);
+  }
+
+  private void release(EndPoint endPoint, Connection connection) {
+    connection.lastUsedTime = System.currentTimeMillis();
+    if (isClosed || !idleConnections
+        .computeIfAbsent(endPoint, key -> new LinkedBlockingDeque<>(maxIdlePerEndPoint))
+        .offerFirst(connection)) {
+      connection.close();
+    }
+  }
+
+  private Connection connect(EndPoint endPoint, int socketTimeout) throws TTransportException {
+    Socket socket = new Socket();
+    try {
+      if (profile.getSendBufferSize() > 0) {
+        socket.setSendBufferSize(profile.getSendBufferSize());
+      }
+      // set before connecting for the window scaling to be negotiated
+      if (profile.getReceiveBufferSize() > 0) {
+        socket.setReceiveBufferSize(profile.getReceiveBufferSize());
+      }
+      socket.setTcpNoDelay(profile.isTcpNoDelay());
+      socket.setKeepAlive(true);
+      socket.setSoTimeout(socketTimeout);
+      socket.connect(new InetSocketAddress(endPoint.getHostName(), endPoint.getPort()),
+          connectionTimeoutMs > 0 ? connectionTimeoutMs : socketTimeout);
+    } catch (IOException e) {
+      try {
+        socket.close();
+      } catch (IOException e1) {
+        logger.debug("can not close the socket to {}", endPoint, e1);
+      }
+      throw new TTransportException(TTransportException.NOT_OPEN, e);
+    }
+    connectCount.increment();
+    TTransport transport = profile.wrap(new TSocket(socket));
+    return new Connection(socket, transport,
+        new DistributedInstanceHub.Client(profile.newProtocolFactory().getProtocol(transport)));
+  }
+
+  private static int toSocketTimeout(long timeoutMs) {
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(1, timeoutMs));
+  }
+
+  /* whether the stream is still in a known state after the exception */
+  private static boolean isReusableAfter(Throwable t) {
+    return t instanceof TException && !(t instanceof TTransportException)
+        && !(t instanceof TProtocolException);
+  }
+
+  private static class Connection {
+    private final Socket socket;
+    private final TTransport transport;
+    private final DistributedInstanceHub.Client client;
+    private long lastUsedTime;
+
+    private Connection(Socket socket, TTransport transport, DistributedInstanceHub.Client client) {
+      this.socket = socket;
+      this.transport = transport;
+      this.client = client;
+    }
+
+    private void close() {
+      transport.close();
+    }
+  }
+
+  private class PooledHandler implements InvocationHandler {
+    private final EndPoint endPoint;
+    private final int socketTimeout;
+
+    private PooledHandler(EndPoint endPoint, int socketTimeout) {
+      this.endPoint = endPoint;
+      this.socketTimeout = socketTimeout;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        return method.invoke(this, args);
+      }
+
+      Connection connection = borrow(endPoint, socketTimeout);
+      boolean isReusable = false;
+      try {
+        Object result = method.invoke(connection.client, args);
+        isReusable = true;
+        return result;
+      } catch (InvocationTargetException e) {
+        isReusable = isReusableAfter(e.getTargetException());
+        throw e.getTargetException();
+      } finally {
+        if (isReusable) {
+          release(endPoint, connection);
+        } else {
+          connection.close();
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "DihClient{" + endPoint + ", " + profile + '}';
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.transport;
+
+import java.util.Locale;
+import org.apache.commons.lang3.Validate;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * How the clients talk to DIH: the thrift protocol, whether the transport is framed, and the
+ * options of the socket. The profile must match what DIH serves.
+ *
+ * <p>The compact protocol encodes the integers of the instances in variable length, which makes
+ * the full cluster response of a refresh notably smaller than the binary protocol does. Larger
+ * socket buffers let such a response arrive in fewer round trips of the TCP window. A framed
+ * transport refuses a frame larger than the max frame size, which must hold the full cluster
+ * response; the default is larger than the one of thrift for that.
+ */
+public class TransportProfile {
+  public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+  public static final TransportProfile COMPACT_FRAMED = new TransportProfile(Protocol.COMPACT, true,
+      0, 0, true);
+  public static final TransportProfile BINARY_FRAMED = new TransportProfile(Protocol.BINARY, true,
+      0, 0, true);
+  public static final TransportProfile BINARY = new TransportProfile(Protocol.BINARY, false, 0, 0,
+      true);
+
+  private final Protocol protocol;
+  private final boolean framed;
+  private final int sendBufferSize;
+  private final int receiveBufferSize;
+  private final boolean tcpNoDelay;
+  private final int maxFrameSize;
+
+  public TransportProfile(Protocol protocol, boolean framed, int sendBufferSize,
+      int receiveBufferSize, boolean tcpNoDelay) {
+    this(protocol, framed, sendBufferSize, receiveBufferSize, tcpNoDelay, DEFAULT_MAX_FRAME_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param protocol          the thrift protocol
+   * @param framed            whether the transport is framed, as a nonblocking server requires
+   * @param sendBufferSize    SO_SNDBUF of the sockets, the system default if not positive
+   * @param receiveBufferSize SO_RCVBUF of the sockets, the system default if not positive
+   * @param tcpNoDelay        TCP_NODELAY of the sockets
+   * @param maxFrameSize      the max size in bytes of a frame read by a framed transport
+   */
+  public TransportProfile(Protocol protocol, boolean framed, int sendBufferSize,
+      int receiveBufferSize, boolean tcpNoDelay, int maxFrameSize) {
+    Validate.notNull(protocol, "protocol must be given");
+    Validate.isTrue(maxFrameSize > 0, "max frame size must be positive: %s", maxFrameSize);
+    this.protocol = protocol;
+    this.framed = framed;
+    this.sendBufferSize = sendBufferSize;
+    this.receiveBufferSize = receiveBufferSize;
+    this.tcpNoDelay = tcpNoDelay;
+    this.maxFrameSize = maxFrameSize;
+  }
+
+  /**
+   * Parse a profile like "compact-framed" or "binary", which are the protocol and optionally
+   * "framed", followed by the buffer sizes in bytes if tuned, e.g. "compact-framed-262144-262144".
+   */
+  public static TransportProfile parse(String value) {
+    String[] parts = value.trim().toLowerCase(Locale.ROOT).split("-");
+    Protocol protocol = Protocol.valueOf(parts[0].toUpperCase(Locale.ROOT));
+    int index = 1;
+    boolean framed = parts.length > index && "framed".equals(parts[index]);
+    if (framed) {
+      index++;
+    }
+    int sendBufferSize = parts.length > index ? Integer.parseInt(parts[index++]) : 0;
+    int receiveBufferSize = parts.length > index ? Integer.parseInt(parts[index++]) : 0;
+    Validate.isTrue(parts.length == index, "unknown transport profile: %s", value);
+    return new TransportProfile(protocol, framed, sendBufferSize, receiveBufferSize, true);
+  }
+
+  /**
+   * Get a copy of the profile with the given socket buffer sizes.
+   */
+  public TransportProfile withBufferSizes(int sendBufferSize, int receiveBufferSize) {
+    return new TransportProfile(protocol, framed, sendBufferSize, receiveBufferSize, tcpNoDelay,
+        maxFrameSize);
+  }
+
+  /**
+   * Get a copy of the profile with the given max frame size.
+   */
+  public TransportProfile withMaxFrameSize(int maxFrameSize) {
+    return new TransportProfile(protocol, framed, sendBufferSize, receiveBufferSize, tcpNoDelay,
+        maxFrameSize);
+  }
+
+  public TProtocolFactory newProtocolFactory() {
+    return protocol == Protocol.COMPACT ? new TCompactProtocol.Factory()
+        : new TBinaryProtocol.Factory();
+  }
+
+  public TTransport wrap(TTransport transport) {
+    return framed ? new TFramedTransport(transport, maxFrameSize) : transport;
+  }
+
+  public Protocol getProtocol() {
+    return protocol;
+  }
+
+  public boolean isFramed() {
+    return framed;
+  }
+
+  public int getSendBufferSize() {
+    return sendBufferSize;
+  }
+
+  public int getReceiveBufferSize() {
+    return receiveBufferSize;
+  }
+
+  public boolean isTcpNoDelay() {
+    return tcpNoDelay;
+  }
+
+  public int getMaxFrameSize() {
+    return maxFrameSize;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder(protocol.name().toLowerCase(Locale.ROOT));
+    if (framed) {
+      builder.append("-framed");
+    }
+    if (sendBufferSize > 0 || receiveBufferSize > 0) {
+      builder.append('-').append(sendBufferSize).append('-').append(receiveBufferSize);
+    }
+    return builder.toString();
+  }
+
+  public enum Protocol {
+    BINARY,
+    COMPACT
+  }
+}
@@ -7,6 +7,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -19,6 +22,8 @@ import py.common.PyService;
 import py.common.struct.EndPoint;
 import py.dih.client.DihClientFactory;
 import py.dih.client.DihServiceBlockingClientWrapper;
+import py.dih.client.InstanceCodec;
+import py.dih.client.jfr.RingRebuildEvent;
 import py.exception.GenericThriftClientFactoryException;
 import py.instance.Instance;
 import py.instance.InstanceStatus;
@@ -28,14 +33,23 @@ public class DihClientBuildWorker implements Worker {
 
   private static final Logger logger = LoggerFactory.getLogger(DihClientBuildWorker.class);
 
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  private static final TypeReference<Instance> instanceTypeRef = new TypeReference<Instance>() {
+  };
+
   private DihClientFactory dihClientFactory;
 
-  private static DihClientNode rootDihClientNode;
+  private static volatile DihClientNode defaultRootDihClientNode;
+
+  private DihClientNode rootDihClientNode;
 
   private File instancesBackupFile;
 
   private long requestTimeout = 0L;
 
+  private boolean isFromBackupFile = false;
+
   public DihClientFactory getDihClientFactory() {
     return dihClientFactory;
   }
@@ -44,12 +58,23 @@ public class DihClientBuildWorker implements Worker {
     this.dihClientFactory = dihClientFactory;
   }
 
+  /**
+   * Get the root of the ring of the first worker, which is the only one in a process working with
+   * one DIH cluster. Use {@link #getRoot()} for the ring of a given worker.
+   */
   public static DihClientNode getRootDihClientNode() {
+    return defaultRootDihClientNode;
+  }
+
+  public DihClientNode getRoot() {
     return rootDihClientNode;
   }
 
   public void setRootDihClientNode(DihClientNode rootDihClientNode) {
-    DihClientBuildWorker.rootDihClientNode = rootDihClientNode;
+    this.rootDihClientNode = rootDihClientNode;
+    if (defaultRootDihClientNode == null) {
+      defaultRootDihClientNode = rootDihClientNode;
+    }
   }
 
   public File getInstancesBackupFile() {
@@ -69,11 +94,22 @@ public class DihClientBuildWorker implements Worker {
   }
 
 
+  /**
+   * Rebuild the ring, it is synchronized as a bootstrap may run it besides the periodic executor.
+   */
   @Override
-  public void doWork() throws Exception {
+  public synchronized void doWork() throws Exception {
+    RingRebuildEvent event = new RingRebuildEvent();
+    event.begin();
     List<Instance> instances = getDihInstances();
     buildDihClientNode(instances);
-
+    event.end();
+    if (event.shouldCommit()) {
+      event.rootEndPoint = String.valueOf(rootDihClientNode.getEndPoint());
+      event.ringSize = instances.size();
+      event.fromBackupFile = isFromBackupFile;
+      event.commit();
+    }
   }
 
   /**.
@@ -83,10 +119,8 @@ public class DihClientBuildWorker implements Worker {
   private List<Instance> getDihInstances() {
     Set<Instance> instances = null;
     try {
-      DihServiceBlockingClientWrapper localDihClient =
-          requestTimeout > 0 ? dihClientFactory.build(rootDihClientNode.getEndPoint(),
-              requestTimeout)
-              : dihClientFactory.build(rootDihClientNode.getEndPoint());
+      DihServiceBlockingClientWrapper localDihClient = dihClientFactory
+          .build(rootDihClientNode.getEndPoint(), requestTimeout, "getDihInstances");
       instances = localDihClient.getInstances(PyService.DIH.getServiceName(),
           InstanceStatus.HEALTHY);
     } catch (TException e) {
@@ -95,7 +129,8 @@ public class DihClientBuildWorker implements Worker {
     } catch (GenericThriftClientFactoryException e) {
       logger.warn("can not build connection with dih: {}", rootDihClientNode.getEndPoint());
     }
-    if (instances == null || instances.isEmpty()) {
+    isFromBackupFile = instances == null || instances.isEmpty();
+    if (isFromBackupFile) {
       instances = getDihInstancesByFile();
     }
     return new ArrayList<>(instances);
@@ -136,25 +171,26 @@ public class DihClientBuildWorker implements Worker {
   }
 
   /**.
-   * get DIH instances from file
+   * get DIH instances from file, the file is either encoded by {@link InstanceCodec} or in json
+   * lines.
    *
    * @return DIH instances
    */
   private Set<Instance> getDihInstancesByFile() {
+    if (isEncodedBackupFile()) {
+      return getDihInstancesByEncodedFile();
+    }
+
     Set<Instance> instances = new HashSet<Instance>();
     BufferedReader reader = null;
     try {
       FileReader fileReader = new FileReader(instancesBackupFile);
       reader = new BufferedReader(fileReader);
-      TypeReference<Instance> typeRef = new TypeReference<Instance>() {
-      };
-      ObjectMapper mapper = new ObjectMapper();
 
       String line = reader.readLine();
       while (line != null) {
-        Instance instance = mapper.readValue(line, typeRef);
-        if (PyService.DIH.getServiceName().equals(instance.getName()) && instance.getStatus()
-            .equals(InstanceStatus.HEALTHY)) {
+        Instance instance = objectMapper.readValue(line, instanceTypeRef);
+        if (isHealthyDih(instance)) {
           instances.add(instance);
         }
         line = reader.readLine();
@@ -178,6 +214,51 @@ public class DihClientBuildWorker implements Worker {
     return instances;
   }
 
+  private boolean isEncodedBackupFile() {
+    if (instancesBackupFile == null || !instancesBackupFile.isFile()) {
+      return false;
+    }
+
+    try (FileChannel channel = FileChannel
+        .open(instancesBackupFile.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer head = ByteBuffer.allocate(Integer.BYTES);
+      while (head.hasRemaining()) {
+        if (channel.read(head) < 0) {
+          break;
+        }
+      }
+      head.flip();
+      return InstanceCodec.isInstanceCodec(head);
+    } catch (IOException e) {
+      logger.warn("can't read the head of file: {}", instancesBackupFile);
+      return false;
+    }
+  }
+
+  private Set<Instance> getDihInstancesByEncodedFile() {
+    Set<Instance> instances = new HashSet<Instance>();
+    try (FileChannel channel = FileChannel
+        .open(instancesBackupFile.toPath(), StandardOpenOption.READ)) {
+      InstanceCodec.Decoder decoder = new InstanceCodec.Decoder(channel);
+      Instance instance = decoder.next();
+      while (instance != null) {
+        if (isHealthyDih(instance)) {
+          instances.add(instance);
+        }
+        instance = decoder.next();
+      }
+      logger.info("The instance " + instances + " read from file");
+    } catch (IOException e) {
+      logger.error("failed to get instances due to failed to read instance from file", e);
+    }
+    return instances;
+  }
+
+  private boolean isHealthyDih(Instance instance) {
+    return PyService.DIH.getServiceName().equals(instance.getName()) && instance.getStatus()
+        .equals(InstanceStatus.HEALTHY);
+  }
+
   public static class DihClientNode {
 
     private EndPoint endPoint;
@@ -15,7 +15,7 @@ import py.periodic.WorkerFactory;
  */
 public class DihClientBuildWorkerFactory implements WorkerFactory {
 
-  private static DihClientBuildWorker worker = null;
+  private DihClientBuildWorker worker = null;
 
   private DihClientFactory dihClientFactory;
 
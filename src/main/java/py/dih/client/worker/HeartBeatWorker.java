@@ -14,19 +14,33 @@
 
 package py.dih.client.worker;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import py.app.context.AppContext;
 import py.common.struct.EndPoint;
 import py.dih.client.DihClientFactory;
+import py.dih.client.DihClientRequestResponseHelper;
 import py.dih.client.DihServiceBlockingClientWrapper;
+import py.dih.client.jfr.HeartBeatEvent;
+import py.dih.client.metrics.Histogram;
+import py.dih.client.metrics.MetricsRegistry;
 import py.instance.DcType;
 import py.instance.Instance;
+import py.instance.InstanceStatus;
 import py.instance.PortType;
 import py.periodic.Worker;
+import py.thrift.distributedinstancehub.service.HeartBeatRequest;
 
 public class HeartBeatWorker implements Worker {
   private static final Logger logger = LoggerFactory.getLogger(HeartBeatWorker.class);
@@ -43,12 +57,58 @@ public class HeartBeatWorker implements Worker {
 
   private DcType dcType = DcType.NORMALSUPPORT;
 
+  private EndPoint relayEndPoint;
+
+  private long steadyInterval = 0L;
+
+  private int coalescingDelay = 50;
+
+  private final AtomicBoolean isTriggered = new AtomicBoolean(false);
+
+  private HeartBeatState lastSentState;
+
+  private long lastSentTime = 0L;
+
+  private long lastSentNanos = 0L;
+
+  private Histogram clientBuildLatency;
+
+  private Histogram roundTripLatency;
+
+  private LongAdder failureCount;
+
   public boolean isNetSubHealth() {
     return netSubHealth;
   }
 
+  /**
+   * Set whether the network of the service is sub-healthy, a change is sent at once.
+   */
   public void setNetSubHealth(boolean netSubHealth) {
+    boolean isChanged = this.netSubHealth != netSubHealth;
     this.netSubHealth = netSubHealth;
+    if (isChanged) {
+      heartBeatNow();
+    }
+  }
+
+  public long getSteadyInterval() {
+    return steadyInterval;
+  }
+
+  /**
+   * Send the heartbeats of an unchanged state only at this interval, and the changes of the state
+   * on the next tick. Every tick sends a heartbeat if not positive, which is the default.
+   */
+  public void setSteadyInterval(long steadyInterval) {
+    this.steadyInterval = steadyInterval;
+  }
+
+  /**
+   * Set how long a triggered heartbeat waits for more changes to send with.
+   */
+  public void setCoalescingDelay(int coalescingDelay) {
+    this.coalescingDelay = coalescingDelay;
   }
 
   public EndPoint getLocalDihEndPoint() {
@@ -59,12 +119,34 @@ public class HeartBeatWorker implements Worker {
     this.localDihEndPoint = localDihEndPoint;
   }
 
+  public EndPoint getRelayEndPoint() {
+    return relayEndPoint;
+  }
+
+  /**
+   * Heartbeat with the host local {@link py.dih.client.relay.HeartBeatRelay} at the endpoint, and
+   * with the local DIH only if the relay fails.
+   */
+  public void setRelayEndPoint(EndPoint relayEndPoint) {
+    this.relayEndPoint = relayEndPoint;
+  }
+
   public AppContext getAppContext() {
     return appContext;
   }
 
+  /**
+   * Set the context of the service to heartbeat for, the metrics of the heartbeats are tagged by
+   * its name.
+   */
   public void setAppContext(AppContext appContext) {
     this.appContext = appContext;
+    String tag = appContext == null || appContext.getInstanceName() == null ? ""
+        : "{" + appContext.getInstanceName() + "}";
+    MetricsRegistry registry = MetricsRegistry.getDefault();
+    clientBuildLatency = registry.histogram("dih.heartbeat.clientBuild.us" + tag);
+    roundTripLatency = registry.histogram("dih.heartbeat.rtt.us" + tag);
+    failureCount = registry.counter("dih.heartbeat.failure" + tag);
   }
 
   public DihClientFactory getDihClientFactory() {
@@ -87,37 +169,177 @@ public class HeartBeatWorker implements Worker {
     this.dcType = type;
   }
 
+  /**
+   * Send the heartbeat if it is due: on every call without a steady interval, otherwise when the
+   * state of the service changed since the last heartbeat or the steady interval passed.
+   */
   @Override
   public void doWork() throws Exception {
+    heartBeat(false, 0L);
+  }
+
+  /**
+   * Send a heartbeat soon, not waiting for the next tick. The calls within the coalescing delay
+   * send one heartbeat of the latest state, and nothing is sent if a tick has sent that state
+   * since the first of them. The heartbeat is sent from a small shared pool, the triggers of a slow
+   * DIH may delay the triggered heartbeats of other services, never their ticks.
+   */
+  public void heartBeatNow() {
+    if (appContext == null || dihClientFactory == null) {
+      return;
+    }
+    if (isTriggered.compareAndSet(false, true)) {
+      long triggerTime = System.nanoTime();
+      TriggerHolder.timer.schedule(() -> TriggerHolder.senders.execute(() -> {
+        isTriggered.set(false);
+        try {
+          heartBeat(true, triggerTime);
+        } catch (Exception e) {
+          logger.warn("can not send the triggered heartbeat of {}", appContext, e);
+        }
+      }), coalescingDelay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Send a heartbeat by a tick, or by a trigger armed at the given nano time.
+   */
+  private synchronized void heartBeat(boolean isTriggeredSend, long triggerTime) {
     Map<PortType, EndPoint> endPoints = appContext.getEndPoints();
     if (endPoints.isEmpty()) {
       logger.error("there is no service on instance: " + appContext);
       return;
     }
 
+    HeartBeatState state = new HeartBeatState(appContext.getStatus(), netSubHealth, dcType);
+    long now = System.currentTimeMillis();
+    long nowNanos = System.nanoTime();
+    if (isTriggeredSend && state.equals(lastSentState) && lastSentNanos - triggerTime > 0) {
+      // a tick has sent the state since the trigger
+      return;
+    }
+    if (!isTriggeredSend && steadyInterval > 0 && state.equals(lastSentState)
+        && now - lastSentTime < steadyInterval) {
+      return;
+    }
+    if (lastSentState != null && !state.equals(lastSentState)) {
+      logger.info("state of {} changed from {} to {}, heartbeat now", appContext.getInstanceName(),
+          lastSentState, state);
+    }
+
     Instance instance = new Instance(appContext.getInstanceId(), appContext.getGroup(),
         appContext.getLocation(),
-        appContext.getInstanceName(), appContext.getStatus());
+        appContext.getInstanceName(), state.status);
     for (Entry<PortType, EndPoint> entry : endPoints.entrySet()) {
       instance.putEndPointByServiceName(entry.getKey(), entry.getValue());
     }
-    instance.setNetSubHealth(netSubHealth);
-    instance.setDcType(dcType);
+    instance.setNetSubHealth(state.netSubHealth);
+    instance.setDcType(state.dcType);
 
     logger.debug("heartbeat with dih, instance: {}", instance);
+    HeartBeatRequest request = DihClientRequestResponseHelper.buildHeartBeatRequest(instance);
+    boolean succeeded = relayEndPoint != null && send(relayEndPoint, request, true)
+        || send(localDihEndPoint, request, false);
+    // a failed heartbeat is retried on the next tick
+    lastSentState = succeeded ? state : null;
+    lastSentTime = now;
+    lastSentNanos = nowNanos;
+  }
+
+  private boolean send(EndPoint endPoint, HeartBeatRequest request, boolean isRelay) {
+    HeartBeatEvent event = new HeartBeatEvent();
+    event.begin();
     DihServiceBlockingClientWrapper client = null;
+    long startTime = System.nanoTime();
     try {
-      client = requestTimeout > 0 ? dihClientFactory.build(localDihEndPoint, requestTimeout)
-          : dihClientFactory.build(localDihEndPoint);
+      client = dihClientFactory.build(endPoint, requestTimeout, "heartBeat");
     } catch (Exception e) {
-      logger.warn("can not build connection with dih: {}", localDihEndPoint);
-      return;
+      failureCount.increment();
+      logger.warn("can not build connection with {}: {}", isRelay ? "heartbeat relay" : "dih",
+          endPoint);
+      commit(event, endPoint, request, false);
+      return false;
+    } finally {
+      clientBuildLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
     }
 
+    startTime = System.nanoTime();
+    boolean succeeded = false;
     try {
-      client.heartBeat(instance);
+      client.heartBeat(request);
+      roundTripLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+      succeeded = true;
     } catch (TException e) {
-      logger.error("Heart Beat Exception catch ", e);
+      failureCount.increment();
+      if (isRelay) {
+        logger.warn("can not heartbeat with relay {}, heartbeat with dih directly", endPoint);
+      } else {
+        logger.error("Heart Beat Exception catch ", e);
+      }
+    }
+    commit(event, endPoint, request, succeeded);
+    return succeeded;
+  }
+
+  private static class TriggerHolder {
+    private static final int SENDER_COUNT = 4;
+    // only times the triggers, the heartbeats are sent by the senders
+    private static final ScheduledExecutorService timer = Executors
+        .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("heartbeat-trigger-%d").setDaemon(true).build());
+    // each worker has at most one trigger queued, so the queue is bounded by the workers
+    private static final ExecutorService senders = Executors.newFixedThreadPool(SENDER_COUNT,
+        new ThreadFactoryBuilder().setNameFormat("heartbeat-trigger-send-%d").setDaemon(true)
+            .build());
+  }
+
+  /**
+   * What a heartbeat tells DIH about the service besides its address.
+   */
+  private static class HeartBeatState {
+    private final InstanceStatus status;
+    private final boolean netSubHealth;
+    private final DcType dcType;
+
+    private HeartBeatState(InstanceStatus status, boolean netSubHealth, DcType dcType) {
+      this.status = status;
+      this.netSubHealth = netSubHealth;
+      this.dcType = dcType;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      HeartBeatState that = (HeartBeatState) o;
+      return status == that.status && netSubHealth == that.netSubHealth && dcType == that.dcType;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(status, netSubHealth, dcType);
+    }
+
+    @Override
+    public String toString() {
+      return "{status=" + status + ", netSubHealth=" + netSubHealth + ", dcType=" + dcType + '}';
+    }
+  }
+
+  private void commit(HeartBeatEvent event, EndPoint endPoint, HeartBeatRequest request,
+      boolean succeeded) {
+    event.end();
+    if (event.shouldCommit()) {
+      event.endPoint = String.valueOf(endPoint);
+      event.instanceId = request.getInstance().getInstanceId();
+      event.requestId = request.getRequestId();
+      event.status = String.valueOf(request.getInstance().getStatus());
+      event.succeeded = succeeded;
+      event.commit();
     }
   }
 }
@@ -23,12 +23,12 @@ import py.periodic.WorkerFactory;
 
 /**
  * This factory is not thread safe. It is expected that the factory is a singleton object injected
- * by spring.
+ * by spring, or one factory per service when a process hosts several services.
  *
  * @author chenlia
  */
 public class HeartBeatWorkerFactory implements WorkerFactory {
-  private static HeartBeatWorker worker = null;
+  private HeartBeatWorker worker = null;
 
   private DihClientFactory dihClientFactory;
 
@@ -40,6 +40,12 @@ public class HeartBeatWorkerFactory implements WorkerFactory {
 
   private DcType dcType;
 
+  private boolean netSubHealth = false;
+
+  private EndPoint relayEndPoint;
+
+  private long steadyInterval = 0L;
+
   public EndPoint getLocalDihEndPoint() {
     return localDihEndPoint;
   }
@@ -48,6 +54,29 @@ public class HeartBeatWorkerFactory implements WorkerFactory {
     this.localDihEndPoint = localDihEndPoint;
   }
 
+  public EndPoint getRelayEndPoint() {
+    return relayEndPoint;
+  }
+
+  public void setRelayEndPoint(EndPoint relayEndPoint) {
+    this.relayEndPoint = relayEndPoint;
+  }
+
+  public long getSteadyInterval() {
+    return steadyInterval;
+  }
+
+  /**
+   * See {@link HeartBeatWorker#setSteadyInterval(long)}, the rate of the executor running the
+   * worker should be faster than the interval to notice the changes of the status soon.
+   */
+  public void setSteadyInterval(long steadyInterval) {
+    this.steadyInterval = steadyInterval;
+    if (worker != null) {
+      worker.setSteadyInterval(steadyInterval);
+    }
+  }
+
   public AppContext getAppContext() {
     return appContext;
   }
@@ -89,11 +118,27 @@ public class HeartBeatWorkerFactory implements WorkerFactory {
       worker.setRequestTimeout(requestTimeout);
       worker.setDihClientFactory(dihClientFactory);
       worker.setDcType(dcType);
+      worker.setRelayEndPoint(relayEndPoint);
+      worker.setSteadyInterval(steadyInterval);
+      worker.setNetSubHealth(netSubHealth);
     }
     return worker;
   }
 
   public void setNetSubHealth(boolean netSubHealth) {
-    worker.setNetSubHealth(netSubHealth);
+    this.netSubHealth = netSubHealth;
+    if (worker != null) {
+      worker.setNetSubHealth(netSubHealth);
+    }
+  }
+
+  /**
+   * Send a heartbeat without waiting for the next tick, e.g. right after the status of the service
+   * changed. Nothing is sent before the worker is created.
+   */
+  public void heartBeatNow() {
+    if (worker != null) {
+      worker.heartBeatNow();
+    }
   }
 }
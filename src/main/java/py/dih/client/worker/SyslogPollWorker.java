@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.worker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import py.common.struct.EndPoint;
+import py.dih.client.DihClientFactory;
+import py.dih.client.DihServiceBlockingClientWrapper;
+import py.dih.client.alarm.AlarmAggregator;
+import py.dih.client.alarm.AlarmStore;
+import py.icshare.AlarmInfo;
+import py.periodic.Worker;
+
+/**
+ * Poll the syslog from DIH and hand the alarms to a bounded queue.
+ *
+ * <p>The worker keeps the time of the last alarm polled as its cursor, and only asks DIH for the
+ * alarms after it. The alarms are converted and handed over one by one. If the queue stays full
+ * for longer than the offer timeout, the rest of the alarms polled are kept in order instead of
+ * being handed over. The next run hands the kept alarms over first and does not poll DIH until
+ * they are all handed over, so that no alarm is skipped and the memory used stays bounded to one
+ * poll during an alarm burst.
+ *
+ * <p>With an {@link AlarmAggregator}, only the alarms it emits are handed over. With an
+ * {@link AlarmStore}, every alarm polled is also kept in the store for local queries.
+ */
+public class SyslogPollWorker implements Worker {
+  private static final Logger logger = LoggerFactory.getLogger(SyslogPollWorker.class);
+
+  private DihClientFactory dihClientFactory;
+
+  private EndPoint dihEndPoint;
+
+  private long requestTimeout = 0L;
+
+  private BlockingQueue<AlarmInfo> alarmQueue;
+
+  private long offerTimeout = 1000L;
+
+  private AlarmAggregator alarmAggregator;
+
+  private AlarmStore alarmStore;
+
+  private volatile long lastReportTime = 0L;
+
+  // the alarms polled but not handed over yet, in the order of polling
+  private final Deque<AlarmInfo> pendingAlarms = new ArrayDeque<>();
+
+  public DihClientFactory getDihClientFactory() {
+    return dihClientFactory;
+  }
+
+  public void setDihClientFactory(DihClientFactory dihClientFactory) {
+    this.dihClientFactory = dihClientFactory;
+  }
+
+  public EndPoint getDihEndPoint() {
+    return dihEndPoint;
+  }
+
+  public void setDihEndPoint(EndPoint dihEndPoint) {
+    this.dihEndPoint = dihEndPoint;
+  }
+
+  public long getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  public void setRequestTimeout(long requestTimeout) {
+    this.requestTimeout = requestTimeout;
+  }
+
+  public BlockingQueue<AlarmInfo> getAlarmQueue() {
+    return alarmQueue;
+  }
+
+  public void setAlarmQueue(BlockingQueue<AlarmInfo> alarmQueue) {
+    this.alarmQueue = alarmQueue;
+  }
+
+  public long getOfferTimeout() {
+    return offerTimeout;
+  }
+
+  public void setOfferTimeout(long offerTimeout) {
+    this.offerTimeout = offerTimeout;
+  }
+
+  public AlarmAggregator getAlarmAggregator() {
+    return alarmAggregator;
+  }
+
+  public void setAlarmAggregator(AlarmAggregator alarmAggregator) {
+    this.alarmAggregator = alarmAggregator;
+  }
+
+  public AlarmStore getAlarmStore() {
+    return alarmStore;
+  }
+
+  public void setAlarmStore(AlarmStore alarmStore) {
+    this.alarmStore = alarmStore;
+  }
+
+  public long getLastReportTime() {
+    return lastReportTime;
+  }
+
+  public void setLastReportTime(long lastReportTime) {
+    this.lastReportTime = lastReportTime;
+  }
+
+  @Override
+  public void doWork() throws Exception {
+    while (!pendingAlarms.isEmpty()) {
+      if (!handOver(pendingAlarms.peekFirst())) {
+        logger.warn("alarm queue is still full, {} alarms are waiting, last report time {}",
+            pendingAlarms.size(), lastReportTime);
+        return;
+      }
+      pendingAlarms.pollFirst();
+    }
+
+    DihServiceBlockingClientWrapper client;
+    try {
+      client = dihClientFactory.build(dihEndPoint, requestTimeout, "getSyslog");
+    } catch (Exception e) {
+      logger.warn("can not build connection with dih: {}", dihEndPoint);
+      return;
+    }
+
+    int count = client.consumeSyslog(lastReportTime, this::accept);
+    logger.debug("polled {} alarms from dih, last report time {}", count, lastReportTime);
+  }
+
+  private boolean accept(AlarmInfo alarmInfo) throws InterruptedException {
+    // once an alarm waits, the later ones wait behind it to keep the order
+    if (!pendingAlarms.isEmpty() || !handOver(alarmInfo)) {
+      if (pendingAlarms.isEmpty()) {
+        logger.warn("alarm queue is full, keep the rest of the alarms until next round, "
+            + "last report time {}", lastReportTime);
+      }
+      pendingAlarms.addLast(alarmInfo);
+    }
+    lastReportTime = Math.max(lastReportTime, alarmInfo.getTimeStamp());
+    return true;
+  }
+
+  private boolean handOver(AlarmInfo alarmInfo) throws InterruptedException {
+    AlarmInfo toOffer = alarmAggregator == null ? alarmInfo
+        : alarmAggregator.aggregate(alarmInfo);
+    if (toOffer != null && !alarmQueue.offer(toOffer, offerTimeout, TimeUnit.MILLISECONDS)) {
+      if (alarmAggregator != null) {
+        // the alarm will be handed over again, let the aggregator emit it again
+        alarmAggregator.revert(toOffer);
+      }
+      return false;
+    }
+
+    if (alarmStore != null) {
+      alarmStore.add(alarmInfo);
+    }
+    return true;
+  }
+}
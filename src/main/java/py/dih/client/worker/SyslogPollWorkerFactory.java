@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client.worker;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import py.common.struct.EndPoint;
+import py.dih.client.DihClientFactory;
+import py.dih.client.alarm.AlarmAggregator;
+import py.dih.client.alarm.AlarmStore;
+import py.icshare.AlarmInfo;
+import py.periodic.Worker;
+import py.periodic.WorkerFactory;
+
+/**
+ * This factory is not thread safe. It is expected that the factory is a singleton object injected
+ * by spring. The worker is created once and reused, because it keeps the cursor of the syslog.
+ */
+public class SyslogPollWorkerFactory implements WorkerFactory {
+  private SyslogPollWorker worker = null;
+
+  private DihClientFactory dihClientFactory;
+
+  private EndPoint dihEndPoint;
+
+  private long requestTimeout = 0;
+
+  private int alarmQueueCapacity = 10000;
+
+  private BlockingQueue<AlarmInfo> alarmQueue;
+
+  private AlarmAggregator alarmAggregator;
+
+  private AlarmStore alarmStore;
+
+  public DihClientFactory getDihClientFactory() {
+    return dihClientFactory;
+  }
+
+  public void setDihClientFactory(DihClientFactory dihClientFactory) {
+    this.dihClientFactory = dihClientFactory;
+  }
+
+  public EndPoint getDihEndPoint() {
+    return dihEndPoint;
+  }
+
+  public void setDihEndPoint(EndPoint dihEndPoint) {
+    this.dihEndPoint = dihEndPoint;
+  }
+
+  public long getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  public void setRequestTimeout(long requestTimeout) {
+    this.requestTimeout = requestTimeout;
+  }
+
+  public int getAlarmQueueCapacity() {
+    return alarmQueueCapacity;
+  }
+
+  public void setAlarmQueueCapacity(int alarmQueueCapacity) {
+    this.alarmQueueCapacity = alarmQueueCapacity;
+  }
+
+  public AlarmAggregator getAlarmAggregator() {
+    return alarmAggregator;
+  }
+
+  /**
+   * Coalesce the identical alarms before putting them into the queue.
+   */
+  public void setAlarmAggregator(AlarmAggregator alarmAggregator) {
+    this.alarmAggregator = alarmAggregator;
+  }
+
+  public AlarmStore getAlarmStore() {
+    return alarmStore;
+  }
+
+  /**
+   * Keep the polled alarms in the store, so that they can be queried without asking DIH.
+   */
+  public void setAlarmStore(AlarmStore alarmStore) {
+    this.alarmStore = alarmStore;
+  }
+
+  /**
+   * Get the queue where the polled alarms are put, consumers take alarms from it.
+   */
+  public BlockingQueue<AlarmInfo> getAlarmQueue() {
+    if (alarmQueue == null) {
+      alarmQueue = new ArrayBlockingQueue<>(alarmQueueCapacity);
+    }
+    return alarmQueue;
+  }
+
+  @Override
+  public Worker createWorker() {
+    if (worker == null) {
+      worker = new SyslogPollWorker();
+      worker.setDihClientFactory(dihClientFactory);
+      worker.setDihEndPoint(dihEndPoint);
+      worker.setRequestTimeout(requestTimeout);
+      worker.setAlarmQueue(getAlarmQueue());
+      worker.setAlarmAggregator(alarmAggregator);
+      worker.setAlarmStore(alarmStore);
+    }
+    return worker;
+  }
+}
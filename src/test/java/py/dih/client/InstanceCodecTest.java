@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2022. PengYunNetWork
+ *
+ * This program is free software: you can use, redistribute, and/or modify it
+ * under the terms of the GNU Affero General Public License, version 3 or later ("AGPL"),
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with
+ *  this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package py.dih.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import py.common.struct.EndPoint;
+import py.instance.DcType;
+import py.instance.Group;
+import py.instance.Instance;
+import py.instance.InstanceId;
+import py.instance.InstanceStatus;
+import py.instance.PortType;
+
+/**
+ * Round trips of {@link InstanceCodec}, and the streams it must refuse.
+ */
+public class InstanceCodecTest {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    List<Instance> instances = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Instance instance = new Instance(new InstanceId(i + 1), i % 5 == 0 ? null : new Group(i % 3),
+          "service-" + i % 4, i % 2 == 0 ? InstanceStatus.HEALTHY : InstanceStatus.FAILED);
+      instance.putEndPointByServiceName(PortType.CONTROL,
+          new EndPoint("10.0.0." + i % 7, 65535 - i));
+      instance.setChecksum(-i * 1000L);
+      instance.setHeartBeatCounter(i);
+      instance.setNetSubHealth(i % 3 == 0);
+      instance.setDcType(i % 2 == 0 ? DcType.NORMALSUPPORT : null);
+      instances.add(instance);
+    }
+
+    // a small buffer so that strings and varints are split across reads and writes
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    InstanceCodec.Encoder encoder = new InstanceCodec.Encoder(Channels.newChannel(output), 64);
+    for (Instance instance : instances) {
+      encoder.encode(instance);
+    }
+    encoder.finish();
+    byte[] bytes = output.toByteArray();
+    assertTrue(InstanceCodec.isInstanceCodec(ByteBuffer.wrap(bytes)));
+
+    InstanceCodec.Decoder decoder = new InstanceCodec.Decoder(
+        Channels.newChannel(new ByteArrayInputStream(bytes)), 64);
+    for (Instance expected : instances) {
+      Instance actual = decoder.next();
+      assertEquals(expected.getId().getId(), actual.getId().getId());
+      if (expected.getGroup() == null) {
+        assertNull(actual.getGroup());
+      } else {
+        assertEquals(expected.getGroup().getGroupId(), actual.getGroup().getGroupId());
+      }
+      assertEquals(expected.getName(), actual.getName());
+      assertEquals(expected.getStatus(), actual.getStatus());
+      assertEquals(expected.getEndPoints(), actual.getEndPoints());
+      assertEquals(expected.getChecksum(), actual.getChecksum());
+      assertEquals(expected.getHeartBeatCounter(), actual.getHeartBeatCounter());
+      assertEquals(expected.isNetSubHealth(), actual.isNetSubHealth());
+      assertEquals(expected.getDcType(), actual.getDcType());
+    }
+    assertNull(decoder.next());
+    assertNull(decoder.next());
+  }
+
+  @Test
+  public void testEmptyStream() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    InstanceCodec.encodeAll(new ArrayList<>(), Channels.newChannel(output));
+    assertTrue(InstanceCodec.decodeAll(
+        Channels.newChannel(new ByteArrayInputStream(output.toByteArray()))).isEmpty());
+  }
+
+  @Test
+  public void testTruncatedStream() throws Exception {
+    Instance instance = new Instance(new InstanceId(1), new Group(0), "service",
+        InstanceStatus.HEALTHY);
+    instance.putEndPointByServiceName(PortType.CONTROL, new EndPoint("10.0.0.1", 10000));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    InstanceCodec.encodeAll(Arrays.asList(instance, instance), Channels.newChannel(output));
+    byte[] bytes = output.toByteArray();
+
+    // every cut, even right before the end tag, must be refused instead of read as complete
+    for (int length = 0; length < bytes.length; length++) {
+      try {
+        InstanceCodec.decodeAll(
+            Channels.newChannel(new ByteArrayInputStream(Arrays.copyOf(bytes, length))));
+        fail("a stream cut at " + length + " of " + bytes.length + " bytes is decoded");
+      } catch (EOFException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testCorruptStream() throws Exception {
+    Instance instance = new Instance(new InstanceId(1), new Group(0), "service",
+        InstanceStatus.HEALTHY);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    InstanceCodec.encodeAll(Arrays.asList(instance), Channels.newChannel(output));
+    byte[] bytes = output.toByteArray();
+
+    byte[] badMagic = bytes.clone();
+    badMagic[0] ^= 0xFF;
+    assertFalse(InstanceCodec.isInstanceCodec(ByteBuffer.wrap(badMagic)));
+    assertRefused(badMagic);
+
+    byte[] newerVersion = bytes.clone();
+    newerVersion[Integer.BYTES] = InstanceCodec.VERSION + 1;
+    assertRefused(newerVersion);
+
+    byte[] unknownTag = bytes.clone();
+    unknownTag[Integer.BYTES + 1] = 0x7F;
+    assertRefused(unknownTag);
+  }
+
+  private void assertRefused(byte[] bytes) {
+    try {
+      InstanceCodec.decodeAll(Channels.newChannel(new ByteArrayInputStream(bytes)));
+      fail("a corrupt stream is decoded");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}